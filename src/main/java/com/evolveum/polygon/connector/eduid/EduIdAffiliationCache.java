@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded LRU cache of affiliations keyed by swissEduPersonUniqueID, entries expire after cacheTtl.
+ *
+ * Shared by all connector instances with the same endpoint and cache settings.
+ *
+ * Reads take {@link #startRead()} before sending the GET and pass it to {@link #put(ConnectorObject, long)},
+ * the response is not cached when the affiliation was invalidated by a write in the meantime.
+ */
+public class EduIdAffiliationCache {
+
+    private static final ConcurrentMap<String, EduIdAffiliationCache> CACHES = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final Map<String, CachedAffiliation> entries;
+
+    // invalidation sequence, reads remember its value when they start
+    private long sequence;
+    // sequence of the latest invalidation per UID, bounded like the entries
+    private final Map<String, Long> invalidations;
+    // latest sequence dropped from invalidations, reads started before it are not cached
+    private long forgotten;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static class CachedAffiliation {
+        private final ConnectorObject object;
+        private final long expiresAt;
+
+        private CachedAffiliation(ConnectorObject object, long expiresAt) {
+            this.object = object;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private EduIdAffiliationCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, CachedAffiliation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAffiliation> eldest) {
+                if (size() > EduIdAffiliationCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.invalidations = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > EduIdAffiliationCache.this.maxSize) {
+                    forgotten = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static EduIdAffiliationCache forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + configuration.getCacheSize() + "|" + configuration.getCacheTtl();
+        EduIdAffiliationCache cache = CACHES.get(key);
+        if (cache == null) {
+            CACHES.putIfAbsent(key, new EduIdAffiliationCache(configuration.getCacheSize(), configuration.getCacheTtl()));
+            cache = CACHES.get(key);
+        }
+        return cache;
+    }
+
+    public synchronized ConnectorObject get(String uid) {
+        CachedAffiliation entry = entries.get(uid);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(uid);
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.object;
+    }
+
+    /**
+     * Caches the response of a write.
+     */
+    public synchronized void put(ConnectorObject object) {
+        entries.put(object.getUid().getUidValue(), new CachedAffiliation(object, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * @return marker of a read, taken before its request is sent
+     */
+    public synchronized long startRead() {
+        return sequence;
+    }
+
+    /**
+     * Caches the response of a read unless the affiliation was invalidated after the read started.
+     *
+     * @param readStarted {@link #startRead()} taken before the request was sent
+     * @return false when the response may be stale and was not cached
+     */
+    public synchronized boolean put(ConnectorObject object, long readStarted) {
+        String uid = object.getUid().getUidValue();
+        Long invalidated = invalidations.get(uid);
+        if (forgotten > readStarted || (invalidated != null && invalidated > readStarted)) {
+            return false;
+        }
+        put(object);
+        return true;
+    }
+
+    public synchronized void invalidate(String uid) {
+        entries.remove(uid);
+        // keep the latest invalidations at the end
+        invalidations.remove(uid);
+        invalidations.put(uid, ++sequence);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EduIdAffiliationCache{" +
+                "size=" + entries.size() +
+                ", maxSize=" + maxSize +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+}
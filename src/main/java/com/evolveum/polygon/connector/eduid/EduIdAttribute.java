@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.AttributeInfo;
+import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Descriptor of one affiliation attribute: name, type, multiplicity, required flag and conversion
+ * between connector and JSON values.
+ *
+ * The table of all descriptors is built once from the attribute name arrays of {@link EduIdConnector},
+ * so schema, create, update and response decoding look attributes up by name instead of scanning the arrays.
+ */
+public final class EduIdAttribute {
+
+    private static final Map<String, EduIdAttribute> ATTRIBUTES;
+
+    static {
+        Set<String> required = new HashSet<>(Arrays.asList(EduIdConnector.REQUIRED_SINGLE_ATTRIBUTES));
+        required.addAll(Arrays.asList(EduIdConnector.REQUIRED_MULTI_ATTRIBUTES));
+
+        Map<String, EduIdAttribute> attributes = new LinkedHashMap<>();
+        add(attributes, EduIdConnector.SINGLE_STRING_ATTRIBUTES, String.class, false, required);
+        add(attributes, EduIdConnector.SINGLE_INT_ATTRIBUTES, Integer.class, false, required);
+        add(attributes, EduIdConnector.MULTI_STRING_ATTRIBUTES, String.class, true, required);
+        add(attributes, EduIdConnector.MULTI_INT_ATTRIBUTES, Integer.class, true, required);
+        ATTRIBUTES = Collections.unmodifiableMap(attributes);
+    }
+
+    private final String name;
+    private final Class<?> type;
+    private final boolean multiValued;
+    private final boolean required;
+    private final AttributeInfo attributeInfo;
+
+    private EduIdAttribute(String name, Class<?> type, boolean multiValued, boolean required) {
+        this.name = name;
+        this.type = type;
+        this.multiValued = multiValued;
+        this.required = required;
+
+        AttributeInfoBuilder attrBuilder = new AttributeInfoBuilder(name, type);
+        attrBuilder.setMultiValued(multiValued);
+        attrBuilder.setRequired(required);
+        this.attributeInfo = attrBuilder.build();
+    }
+
+    private static void add(Map<String, EduIdAttribute> attributes, String[] names, Class<?> type, boolean multiValued,
+                            Set<String> required) {
+        for (String name : names) {
+            attributes.put(name, new EduIdAttribute(name, type, multiValued, required.contains(name)));
+        }
+    }
+
+    /**
+     * @return descriptor or null for attribute not in the affiliation schema
+     */
+    public static EduIdAttribute get(String name) {
+        return ATTRIBUTES.get(name);
+    }
+
+    /**
+     * @return all descriptors in schema order
+     */
+    public static Collection<EduIdAttribute> all() {
+        return ATTRIBUTES.values();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public boolean isMultiValued() {
+        return multiValued;
+    }
+
+    public boolean isRequired() {
+        return required;
+    }
+
+    public AttributeInfo getAttributeInfo() {
+        return attributeInfo;
+    }
+
+    /**
+     * Connector values to JSON: array for multi-valued attribute, otherwise single value
+     * or null when there is no value.
+     */
+    public Object toJson(List<Object> values) {
+        if (multiValued) {
+            JSONArray array = new JSONArray();
+            if (values != null) {
+                for (Object value : values) {
+                    array.put(toValue(value));
+                }
+            }
+            return array;
+        }
+        if (values == null || values.isEmpty() || values.get(0) == null) {
+            return null;
+        }
+        if (values.size() > 1) {
+            throw new InvalidAttributeValueException("More than one value for attribute " + name);
+        }
+        return toValue(values.get(0));
+    }
+
+    /**
+     * Converts one connector or JSON value to the attribute type.
+     */
+    public Object toValue(Object value) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            throw new InvalidAttributeValueException("Value " + null + " must be not null for attribute " + name);
+        }
+        if (type == Integer.class) {
+            if (value instanceof Integer) {
+                return value;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).intValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Integer.parseInt((String) value);
+                } catch (NumberFormatException e) {
+                    // handled below
+                }
+            }
+        } else if (value instanceof String) {
+            return value;
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        throw new InvalidAttributeValueException("Unsupported value '" + value + "' for attribute name '" + name + "'");
+    }
+
+    /**
+     * @param jsonValue value read from the server
+     * @param newValue value from {@link #toJson(List)}
+     * @return true when both values are same, values of multi-valued attribute in any order
+     */
+    public boolean sameValue(Object jsonValue, Object newValue) {
+        List<String> oldValues = strings(jsonValue);
+        List<String> newValues = strings(newValue);
+        if (multiValued) {
+            Collections.sort(oldValues);
+            Collections.sort(newValues);
+        }
+        return oldValues.equals(newValues);
+    }
+
+    /**
+     * @return false for missing value, blank string or empty array
+     */
+    public boolean hasValue(Object jsonValue) {
+        if (jsonValue == null || JSONObject.NULL.equals(jsonValue)) {
+            return false;
+        }
+        if (jsonValue instanceof JSONArray) {
+            return ((JSONArray) jsonValue).length() > 0;
+        }
+        return !StringUtil.isBlank(String.valueOf(jsonValue));
+    }
+
+    private List<String> strings(Object jsonValue) {
+        List<String> values = new ArrayList<>();
+        if (jsonValue instanceof JSONArray) {
+            JSONArray array = (JSONArray) jsonValue;
+            for (int i = 0; i < array.length(); i++) {
+                values.add(String.valueOf(array.get(i)));
+            }
+        } else if (jsonValue != null && !JSONObject.NULL.equals(jsonValue)) {
+            values.add(String.valueOf(jsonValue));
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "EduIdAttribute{" +
+                "name=" + name +
+                ", type=" + type.getSimpleName() +
+                ", multiValued=" + multiValued +
+                ", required=" + required +
+                '}';
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.apache.http.client.methods.HttpPost;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Groups create, update and delete requests from concurrent connector instances into SCIM /Bulk requests.
+ *
+ * Every caller still waits for the result of its own operation. When no other batch is in flight, no other
+ * writer is waiting and the batch is sent at once. Otherwise the first operation of a batch collects other
+ * operations until the batch in flight completes, at most bulkFlushInterval, the batch is sent earlier when
+ * it reaches bulkSize. The batch is sent by the thread which closed it, using its own connector instance.
+ */
+public class EduIdBulkProcessor {
+
+    private static final Log LOG = Log.getLog(EduIdBulkProcessor.class);
+
+    protected static final String BULK_REQUEST_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkRequest";
+    protected static final String OPERATIONS = "Operations";
+    protected static final String METHOD = "method";
+    protected static final String PATH = "path";
+    protected static final String BULK_ID = "bulkId";
+    protected static final String DATA = "data";
+    protected static final String STATUS = "status";
+    protected static final String RESPONSE = "response";
+    protected static final String LOCATION = "location";
+    protected static final String VERSION = "version";
+
+    private static final ConcurrentMap<String, EduIdBulkProcessor> PROCESSORS = new ConcurrentHashMap<>();
+
+    private final int bulkSize;
+    private final long flushIntervalNanos;
+
+    private Batch pending;
+    // batches being sent, guarded by this
+    private int inFlight;
+
+    private EduIdBulkProcessor(int bulkSize, long flushIntervalMillis) {
+        this.bulkSize = bulkSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    }
+
+    /**
+     * Processor shared by all connector instances with the same endpoint and bulk settings.
+     */
+    public static EduIdBulkProcessor forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + configuration.getBulkSize() + "|" + configuration.getBulkFlushInterval();
+        EduIdBulkProcessor processor = PROCESSORS.get(key);
+        if (processor == null) {
+            PROCESSORS.putIfAbsent(key, new EduIdBulkProcessor(configuration.getBulkSize(), configuration.getBulkFlushInterval()));
+            processor = PROCESSORS.get(key);
+        }
+        return processor;
+    }
+
+    private static class Batch {
+        private final List<Operation> operations = new ArrayList<>();
+    }
+
+    private static class Operation {
+        private final String method;
+        private final String path;
+        private final String version;
+        private final JSONObject data;
+        private final String bulkId;
+        private final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+
+        private Operation(String method, String path, String version, JSONObject data, String bulkId) {
+            this.method = method;
+            this.path = path;
+            this.version = version;
+            this.data = data;
+            this.bulkId = bulkId;
+        }
+    }
+
+    /**
+     * Adds the operation to the pending batch and waits for its result.
+     *
+     * @param path resource path relative to service address, e.g. /Affiliations/{id}
+     * @param version expected resource version (If-Match) or null
+     * @param data resource for POST, PUT and PATCH, null for DELETE
+     * @return BulkResponse operation, e.g. with location and version
+     */
+    public JSONObject execute(EduIdConnector connector, String method, String path, String version, JSONObject data) {
+        Operation operation;
+        Batch toSend = null;
+        synchronized (this) {
+            boolean leader = pending == null;
+            if (leader) {
+                pending = new Batch();
+            }
+            Batch batch = pending;
+            operation = new Operation(method, path, version, data, String.valueOf(batch.operations.size() + 1));
+            batch.operations.add(operation);
+
+            if (batch.operations.size() >= bulkSize) {
+                pending = null;
+                toSend = batch;
+                notifyAll();
+            } else if (leader) {
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                long remaining;
+                while (pending == batch && inFlight > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (pending == batch) {
+                    pending = null;
+                    toSend = batch;
+                }
+            }
+            if (toSend != null) {
+                inFlight++;
+            }
+        }
+
+        if (toSend != null) {
+            try {
+                send(connector, toSend);
+            } finally {
+                sent();
+            }
+        }
+        return await(operation);
+    }
+
+    /**
+     * Wakes up the leader of the pending batch, it was collecting operations while this batch was sent.
+     */
+    private synchronized void sent() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private JSONObject await(Operation operation) {
+        try {
+            return operation.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while waiting for bulk operation " + operation.method + " " + operation.path, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorIOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void send(EduIdConnector connector, Batch batch) {
+        LOG.ok("sending bulk request with {0} operations", batch.operations.size());
+        try {
+            HttpPost request = new HttpPost(connector.getConfiguration().getServiceAddress() + EduIdConnector.BULK);
+            JSONObject response = connector.callRequest(request, buildRequest(batch));
+            processResponse(batch, response);
+        } catch (IOException e) {
+            failAll(batch, new ConnectorIOException(e.getMessage(), e));
+        } catch (RuntimeException e) {
+            failAll(batch, e);
+        } finally {
+            failAll(batch, new ConnectorIOException("Missing operation result in bulk response"));
+        }
+    }
+
+    private JSONObject buildRequest(Batch batch) {
+        JSONArray operations = new JSONArray();
+        for (Operation operation : batch.operations) {
+            JSONObject jo = new JSONObject();
+            jo.put(METHOD, operation.method);
+            jo.put(BULK_ID, operation.bulkId);
+            jo.put(PATH, operation.path);
+            if (operation.version != null) {
+                jo.put(VERSION, operation.version);
+            }
+            if (operation.data != null) {
+                jo.put(DATA, operation.data);
+            }
+            operations.put(jo);
+        }
+        JSONObject request = new JSONObject();
+        String schema[] = {BULK_REQUEST_SCHEMA};
+        request.put(EduIdConnector.SCHEMAS, schema);
+        request.put(OPERATIONS, operations);
+        return request;
+    }
+
+    private void processResponse(Batch batch, JSONObject response) {
+        JSONArray results = response == null ? null : response.optJSONArray(OPERATIONS);
+        if (results == null) {
+            return;
+        }
+        Map<String, Operation> byBulkId = new HashMap<>();
+        for (Operation operation : batch.operations) {
+            byBulkId.put(operation.bulkId, operation);
+        }
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            String bulkId = result.optString(BULK_ID, null);
+            // bulkId is mandatory for POST only, otherwise match results by order
+            Operation operation = bulkId != null ? byBulkId.get(bulkId) : (i < batch.operations.size() ? batch.operations.get(i) : null);
+            if (operation == null) {
+                LOG.warn("Unexpected bulk operation result: {0}", result);
+                continue;
+            }
+
+            int statusCode = parseStatus(result.opt(STATUS));
+            if (statusCode >= 200 && statusCode < 300) {
+                operation.result.complete(result);
+                continue;
+            }
+            JSONObject error = result.optJSONObject(RESPONSE);
+            String scimType = error == null ? null : error.optString("scimType", null);
+            String errDetail = error == null ? null : error.optString("detail", null);
+            if (errDetail == null && result.opt(STATUS) instanceof JSONObject) {
+                // SCIM 1.1 reports error in status.description
+                errDetail = result.getJSONObject(STATUS).optString("description", null);
+            }
+            LOG.ok("bulk operation {0} {1} failed: {2}", operation.method, operation.path, result);
+            operation.result.completeExceptionally(EduIdConnector.scimError(statusCode, scimType, errDetail, result.toString()));
+        }
+    }
+
+    private int parseStatus(Object status) {
+        // SCIM 2.0 sends "201", SCIM 1.1 {"code": "201"}, some servers a number
+        if (status instanceof JSONObject) {
+            status = ((JSONObject) status).opt("code");
+        }
+        if (status instanceof Number) {
+            return ((Number) status).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(status).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void failAll(Batch batch, RuntimeException e) {
+        for (Operation operation : batch.operations) {
+            operation.result.completeExceptionally(e);
+        }
+    }
+}
@@ -28,6 +28,485 @@ import java.util.*;
  */
 public class EduIdConfiguration extends AbstractRestConfiguration {
 
+    private Integer pageSize = 100;
+
+    private Long maxResponseSize = 16L * 1024 * 1024;
+
+    private Boolean bulkEnabled = false;
+
+    private Integer bulkSize = 100;
+
+    private Integer bulkFlushInterval = 100;
+
+    private Integer cacheSize = 0;
+
+    private Integer cacheTtl = 60000;
+
+    private Integer httpMaxConnections = 20;
+
+    private Integer httpMaxConnectionsPerRoute = 20;
+
+    private Integer httpKeepAlive = 30000;
+
+    private Integer httpIdleTimeout = 60000;
+
+    private Integer httpConnectTimeout = 10000;
+
+    private Integer httpSocketTimeout = 60000;
+
+    private Integer searchParallelism = 4;
+
+    private Integer rateLimit = 0;
+
+    private Integer rateLimitBurst = 10;
+
+    private Integer maxRetries = 3;
+
+    private Integer retryBaseDelay = 500;
+
+    private Integer retryMaxDelay = 30000;
+
+    private Integer aliveTtl = 10000;
+
+    private Integer circuitBreakerThreshold = 5;
+
+    private Integer circuitBreakerReset = 30000;
+
+    private Integer metricsLogInterval = 0;
+
+    private Boolean wireLogEnabled = false;
+
+    private Integer wireLogMaxBodySize = 4096;
+
+    private Integer wireLogSampleRate = 100;
+
+    private String[] wireLogRedactedAttributes = {"fschImapPW"};
+
+    private Boolean httpCompression = false;
+
+    private Integer httpRequestCompressionThreshold = 0;
+
+    private Boolean httpAsync = false;
+
+    private Integer httpAsyncIoThreads = 2;
+
+    private Integer httpWarmUpConnections = 0;
+
+    private Boolean readCoalescing = true;
+
+    private Integer hedgeDelay = 0;
+
+    private Integer hedgeBudget = 5;
+
+    @ConfigurationProperty(order = 10, displayMessageKey = "pageSize.display", helpMessageKey = "pageSize.help")
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @ConfigurationProperty(order = 11, displayMessageKey = "maxResponseSize.display", helpMessageKey = "maxResponseSize.help")
+    public Long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    public void setMaxResponseSize(Long maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    @ConfigurationProperty(order = 12, displayMessageKey = "bulkEnabled.display", helpMessageKey = "bulkEnabled.help")
+    public Boolean getBulkEnabled() {
+        return bulkEnabled;
+    }
+
+    public void setBulkEnabled(Boolean bulkEnabled) {
+        this.bulkEnabled = bulkEnabled;
+    }
+
+    @ConfigurationProperty(order = 13, displayMessageKey = "bulkSize.display", helpMessageKey = "bulkSize.help")
+    public Integer getBulkSize() {
+        return bulkSize;
+    }
+
+    public void setBulkSize(Integer bulkSize) {
+        this.bulkSize = bulkSize;
+    }
+
+    @ConfigurationProperty(order = 14, displayMessageKey = "bulkFlushInterval.display", helpMessageKey = "bulkFlushInterval.help")
+    public Integer getBulkFlushInterval() {
+        return bulkFlushInterval;
+    }
+
+    public void setBulkFlushInterval(Integer bulkFlushInterval) {
+        this.bulkFlushInterval = bulkFlushInterval;
+    }
+
+    @ConfigurationProperty(order = 15, displayMessageKey = "cacheSize.display", helpMessageKey = "cacheSize.help")
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(Integer cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    @ConfigurationProperty(order = 16, displayMessageKey = "cacheTtl.display", helpMessageKey = "cacheTtl.help")
+    public Integer getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(Integer cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    @ConfigurationProperty(order = 17, displayMessageKey = "httpMaxConnections.display", helpMessageKey = "httpMaxConnections.help")
+    public Integer getHttpMaxConnections() {
+        return httpMaxConnections;
+    }
+
+    public void setHttpMaxConnections(Integer httpMaxConnections) {
+        this.httpMaxConnections = httpMaxConnections;
+    }
+
+    @ConfigurationProperty(order = 18, displayMessageKey = "httpMaxConnectionsPerRoute.display", helpMessageKey = "httpMaxConnectionsPerRoute.help")
+    public Integer getHttpMaxConnectionsPerRoute() {
+        return httpMaxConnectionsPerRoute;
+    }
+
+    public void setHttpMaxConnectionsPerRoute(Integer httpMaxConnectionsPerRoute) {
+        this.httpMaxConnectionsPerRoute = httpMaxConnectionsPerRoute;
+    }
+
+    @ConfigurationProperty(order = 19, displayMessageKey = "httpKeepAlive.display", helpMessageKey = "httpKeepAlive.help")
+    public Integer getHttpKeepAlive() {
+        return httpKeepAlive;
+    }
+
+    public void setHttpKeepAlive(Integer httpKeepAlive) {
+        this.httpKeepAlive = httpKeepAlive;
+    }
+
+    @ConfigurationProperty(order = 20, displayMessageKey = "httpIdleTimeout.display", helpMessageKey = "httpIdleTimeout.help")
+    public Integer getHttpIdleTimeout() {
+        return httpIdleTimeout;
+    }
+
+    public void setHttpIdleTimeout(Integer httpIdleTimeout) {
+        this.httpIdleTimeout = httpIdleTimeout;
+    }
+
+    @ConfigurationProperty(order = 21, displayMessageKey = "httpConnectTimeout.display", helpMessageKey = "httpConnectTimeout.help")
+    public Integer getHttpConnectTimeout() {
+        return httpConnectTimeout;
+    }
+
+    public void setHttpConnectTimeout(Integer httpConnectTimeout) {
+        this.httpConnectTimeout = httpConnectTimeout;
+    }
+
+    @ConfigurationProperty(order = 22, displayMessageKey = "httpSocketTimeout.display", helpMessageKey = "httpSocketTimeout.help")
+    public Integer getHttpSocketTimeout() {
+        return httpSocketTimeout;
+    }
+
+    public void setHttpSocketTimeout(Integer httpSocketTimeout) {
+        this.httpSocketTimeout = httpSocketTimeout;
+    }
+
+    @ConfigurationProperty(order = 23, displayMessageKey = "searchParallelism.display", helpMessageKey = "searchParallelism.help")
+    public Integer getSearchParallelism() {
+        return searchParallelism;
+    }
+
+    public void setSearchParallelism(Integer searchParallelism) {
+        this.searchParallelism = searchParallelism;
+    }
+
+    @ConfigurationProperty(order = 24, displayMessageKey = "rateLimit.display", helpMessageKey = "rateLimit.help")
+    public Integer getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(Integer rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    @ConfigurationProperty(order = 25, displayMessageKey = "rateLimitBurst.display", helpMessageKey = "rateLimitBurst.help")
+    public Integer getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    public void setRateLimitBurst(Integer rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    @ConfigurationProperty(order = 26, displayMessageKey = "maxRetries.display", helpMessageKey = "maxRetries.help")
+    public Integer getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(Integer maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @ConfigurationProperty(order = 27, displayMessageKey = "retryBaseDelay.display", helpMessageKey = "retryBaseDelay.help")
+    public Integer getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+
+    public void setRetryBaseDelay(Integer retryBaseDelay) {
+        this.retryBaseDelay = retryBaseDelay;
+    }
+
+    @ConfigurationProperty(order = 28, displayMessageKey = "retryMaxDelay.display", helpMessageKey = "retryMaxDelay.help")
+    public Integer getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public void setRetryMaxDelay(Integer retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    @ConfigurationProperty(order = 29, displayMessageKey = "aliveTtl.display", helpMessageKey = "aliveTtl.help")
+    public Integer getAliveTtl() {
+        return aliveTtl;
+    }
+
+    public void setAliveTtl(Integer aliveTtl) {
+        this.aliveTtl = aliveTtl;
+    }
+
+    @ConfigurationProperty(order = 30, displayMessageKey = "circuitBreakerThreshold.display", helpMessageKey = "circuitBreakerThreshold.help")
+    public Integer getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerThreshold(Integer circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    @ConfigurationProperty(order = 31, displayMessageKey = "circuitBreakerReset.display", helpMessageKey = "circuitBreakerReset.help")
+    public Integer getCircuitBreakerReset() {
+        return circuitBreakerReset;
+    }
+
+    public void setCircuitBreakerReset(Integer circuitBreakerReset) {
+        this.circuitBreakerReset = circuitBreakerReset;
+    }
+
+    @ConfigurationProperty(order = 32, displayMessageKey = "metricsLogInterval.display", helpMessageKey = "metricsLogInterval.help")
+    public Integer getMetricsLogInterval() {
+        return metricsLogInterval;
+    }
+
+    public void setMetricsLogInterval(Integer metricsLogInterval) {
+        this.metricsLogInterval = metricsLogInterval;
+    }
+
+    @ConfigurationProperty(order = 33, displayMessageKey = "wireLogEnabled.display", helpMessageKey = "wireLogEnabled.help")
+    public Boolean getWireLogEnabled() {
+        return wireLogEnabled;
+    }
+
+    public void setWireLogEnabled(Boolean wireLogEnabled) {
+        this.wireLogEnabled = wireLogEnabled;
+    }
+
+    @ConfigurationProperty(order = 34, displayMessageKey = "wireLogMaxBodySize.display", helpMessageKey = "wireLogMaxBodySize.help")
+    public Integer getWireLogMaxBodySize() {
+        return wireLogMaxBodySize;
+    }
+
+    public void setWireLogMaxBodySize(Integer wireLogMaxBodySize) {
+        this.wireLogMaxBodySize = wireLogMaxBodySize;
+    }
+
+    @ConfigurationProperty(order = 35, displayMessageKey = "wireLogSampleRate.display", helpMessageKey = "wireLogSampleRate.help")
+    public Integer getWireLogSampleRate() {
+        return wireLogSampleRate;
+    }
+
+    public void setWireLogSampleRate(Integer wireLogSampleRate) {
+        this.wireLogSampleRate = wireLogSampleRate;
+    }
+
+    @ConfigurationProperty(order = 36, displayMessageKey = "wireLogRedactedAttributes.display", helpMessageKey = "wireLogRedactedAttributes.help")
+    public String[] getWireLogRedactedAttributes() {
+        return wireLogRedactedAttributes;
+    }
+
+    public void setWireLogRedactedAttributes(String[] wireLogRedactedAttributes) {
+        this.wireLogRedactedAttributes = wireLogRedactedAttributes;
+    }
+
+    @ConfigurationProperty(order = 37, displayMessageKey = "httpCompression.display", helpMessageKey = "httpCompression.help")
+    public Boolean getHttpCompression() {
+        return httpCompression;
+    }
+
+    public void setHttpCompression(Boolean httpCompression) {
+        this.httpCompression = httpCompression;
+    }
+
+    @ConfigurationProperty(order = 38, displayMessageKey = "httpRequestCompressionThreshold.display", helpMessageKey = "httpRequestCompressionThreshold.help")
+    public Integer getHttpRequestCompressionThreshold() {
+        return httpRequestCompressionThreshold;
+    }
+
+    public void setHttpRequestCompressionThreshold(Integer httpRequestCompressionThreshold) {
+        this.httpRequestCompressionThreshold = httpRequestCompressionThreshold;
+    }
+
+    @ConfigurationProperty(order = 39, displayMessageKey = "httpAsync.display", helpMessageKey = "httpAsync.help")
+    public Boolean getHttpAsync() {
+        return httpAsync;
+    }
+
+    public void setHttpAsync(Boolean httpAsync) {
+        this.httpAsync = httpAsync;
+    }
+
+    @ConfigurationProperty(order = 40, displayMessageKey = "httpAsyncIoThreads.display", helpMessageKey = "httpAsyncIoThreads.help")
+    public Integer getHttpAsyncIoThreads() {
+        return httpAsyncIoThreads;
+    }
+
+    public void setHttpAsyncIoThreads(Integer httpAsyncIoThreads) {
+        this.httpAsyncIoThreads = httpAsyncIoThreads;
+    }
+
+    @ConfigurationProperty(order = 41, displayMessageKey = "httpWarmUpConnections.display", helpMessageKey = "httpWarmUpConnections.help")
+    public Integer getHttpWarmUpConnections() {
+        return httpWarmUpConnections;
+    }
+
+    public void setHttpWarmUpConnections(Integer httpWarmUpConnections) {
+        this.httpWarmUpConnections = httpWarmUpConnections;
+    }
+
+    @ConfigurationProperty(order = 42, displayMessageKey = "readCoalescing.display", helpMessageKey = "readCoalescing.help")
+    public Boolean getReadCoalescing() {
+        return readCoalescing;
+    }
+
+    public void setReadCoalescing(Boolean readCoalescing) {
+        this.readCoalescing = readCoalescing;
+    }
+
+    @ConfigurationProperty(order = 43, displayMessageKey = "hedgeDelay.display", helpMessageKey = "hedgeDelay.help")
+    public Integer getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    public void setHedgeDelay(Integer hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    @ConfigurationProperty(order = 44, displayMessageKey = "hedgeBudget.display", helpMessageKey = "hedgeBudget.help")
+    public Integer getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    public void setHedgeBudget(Integer hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    @Override
+    public void validate() {
+        super.validate();
+        if (pageSize == null || pageSize < 1) {
+            throw new ConfigurationException("pageSize must be a positive number, got: " + pageSize);
+        }
+        if (maxResponseSize == null || maxResponseSize < 1) {
+            throw new ConfigurationException("maxResponseSize must be a positive number, got: " + maxResponseSize);
+        }
+        if (Boolean.TRUE.equals(bulkEnabled)) {
+            if (bulkSize == null || bulkSize < 1) {
+                throw new ConfigurationException("bulkSize must be a positive number, got: " + bulkSize);
+            }
+            if (bulkFlushInterval == null || bulkFlushInterval < 0) {
+                throw new ConfigurationException("bulkFlushInterval must not be negative, got: " + bulkFlushInterval);
+            }
+        }
+        if (cacheSize != null && cacheSize > 0 && (cacheTtl == null || cacheTtl < 1)) {
+            throw new ConfigurationException("cacheTtl must be a positive number, got: " + cacheTtl);
+        }
+        if (httpMaxConnections == null || httpMaxConnections < 1) {
+            throw new ConfigurationException("httpMaxConnections must be a positive number, got: " + httpMaxConnections);
+        }
+        if (httpMaxConnectionsPerRoute == null || httpMaxConnectionsPerRoute < 1) {
+            throw new ConfigurationException("httpMaxConnectionsPerRoute must be a positive number, got: " + httpMaxConnectionsPerRoute);
+        }
+        if (httpKeepAlive == null || httpKeepAlive < 0) {
+            throw new ConfigurationException("httpKeepAlive must not be negative, got: " + httpKeepAlive);
+        }
+        if (httpIdleTimeout == null || httpIdleTimeout < 1) {
+            throw new ConfigurationException("httpIdleTimeout must be a positive number, got: " + httpIdleTimeout);
+        }
+        if (httpConnectTimeout == null || httpConnectTimeout < 0) {
+            throw new ConfigurationException("httpConnectTimeout must not be negative, got: " + httpConnectTimeout);
+        }
+        if (httpSocketTimeout == null || httpSocketTimeout < 0) {
+            throw new ConfigurationException("httpSocketTimeout must not be negative, got: " + httpSocketTimeout);
+        }
+        if (searchParallelism == null || searchParallelism < 1) {
+            throw new ConfigurationException("searchParallelism must be a positive number, got: " + searchParallelism);
+        }
+        if (rateLimit == null || rateLimit < 0) {
+            throw new ConfigurationException("rateLimit must not be negative, got: " + rateLimit);
+        }
+        if (rateLimit > 0 && (rateLimitBurst == null || rateLimitBurst < 1)) {
+            throw new ConfigurationException("rateLimitBurst must be a positive number, got: " + rateLimitBurst);
+        }
+        if (maxRetries == null || maxRetries < 0) {
+            throw new ConfigurationException("maxRetries must not be negative, got: " + maxRetries);
+        }
+        if (retryBaseDelay == null || retryBaseDelay < 1) {
+            throw new ConfigurationException("retryBaseDelay must be a positive number, got: " + retryBaseDelay);
+        }
+        if (retryMaxDelay == null || retryMaxDelay < retryBaseDelay) {
+            throw new ConfigurationException("retryMaxDelay must not be less than retryBaseDelay, got: " + retryMaxDelay);
+        }
+        if (aliveTtl == null || aliveTtl < 0) {
+            throw new ConfigurationException("aliveTtl must not be negative, got: " + aliveTtl);
+        }
+        if (circuitBreakerThreshold == null || circuitBreakerThreshold < 0) {
+            throw new ConfigurationException("circuitBreakerThreshold must not be negative, got: " + circuitBreakerThreshold);
+        }
+        if (circuitBreakerThreshold > 0 && (circuitBreakerReset == null || circuitBreakerReset < 1)) {
+            throw new ConfigurationException("circuitBreakerReset must be a positive number, got: " + circuitBreakerReset);
+        }
+        if (metricsLogInterval == null || metricsLogInterval < 0) {
+            throw new ConfigurationException("metricsLogInterval must not be negative, got: " + metricsLogInterval);
+        }
+        if (wireLogMaxBodySize == null || wireLogMaxBodySize < 0) {
+            throw new ConfigurationException("wireLogMaxBodySize must not be negative, got: " + wireLogMaxBodySize);
+        }
+        if (wireLogSampleRate == null || wireLogSampleRate < 0 || wireLogSampleRate > 100) {
+            throw new ConfigurationException("wireLogSampleRate must be between 0 and 100, got: " + wireLogSampleRate);
+        }
+        if (httpRequestCompressionThreshold == null || httpRequestCompressionThreshold < 0) {
+            throw new ConfigurationException("httpRequestCompressionThreshold must not be negative, got: " + httpRequestCompressionThreshold);
+        }
+        if (httpRequestCompressionThreshold > 0 && !Boolean.TRUE.equals(httpCompression)) {
+            throw new ConfigurationException("httpRequestCompressionThreshold requires httpCompression");
+        }
+        if (Boolean.TRUE.equals(httpAsync) && (httpAsyncIoThreads == null || httpAsyncIoThreads < 1)) {
+            throw new ConfigurationException("httpAsyncIoThreads must be a positive number, got: " + httpAsyncIoThreads);
+        }
+        if (httpWarmUpConnections == null || httpWarmUpConnections < 0) {
+            throw new ConfigurationException("httpWarmUpConnections must not be negative, got: " + httpWarmUpConnections);
+        }
+        if (hedgeDelay == null || hedgeDelay < 0) {
+            throw new ConfigurationException("hedgeDelay must not be negative, got: " + hedgeDelay);
+        }
+        if (hedgeBudget == null || hedgeBudget < 0 || hedgeBudget > 100) {
+            throw new ConfigurationException("hedgeBudget must be between 0 and 100, got: " + hedgeBudget);
+        }
+    }
+
     @Override
     public String toString() {
         return "EduIdConfiguration{" +
@@ -35,6 +514,41 @@ public class EduIdConfiguration extends AbstractRestConfiguration {
                 ", serviceAddress=" + getServiceAddress() +
                 ", authMethod=" + getAuthMethod() +
                 ", trustAllCertificates=" + getTrustAllCertificates() +
+                ", pageSize=" + pageSize +
+                ", maxResponseSize=" + maxResponseSize +
+                ", bulkEnabled=" + bulkEnabled +
+                ", bulkSize=" + bulkSize +
+                ", bulkFlushInterval=" + bulkFlushInterval +
+                ", cacheSize=" + cacheSize +
+                ", cacheTtl=" + cacheTtl +
+                ", httpMaxConnections=" + httpMaxConnections +
+                ", httpMaxConnectionsPerRoute=" + httpMaxConnectionsPerRoute +
+                ", httpKeepAlive=" + httpKeepAlive +
+                ", httpIdleTimeout=" + httpIdleTimeout +
+                ", httpConnectTimeout=" + httpConnectTimeout +
+                ", httpSocketTimeout=" + httpSocketTimeout +
+                ", searchParallelism=" + searchParallelism +
+                ", rateLimit=" + rateLimit +
+                ", rateLimitBurst=" + rateLimitBurst +
+                ", maxRetries=" + maxRetries +
+                ", retryBaseDelay=" + retryBaseDelay +
+                ", retryMaxDelay=" + retryMaxDelay +
+                ", aliveTtl=" + aliveTtl +
+                ", circuitBreakerThreshold=" + circuitBreakerThreshold +
+                ", circuitBreakerReset=" + circuitBreakerReset +
+                ", metricsLogInterval=" + metricsLogInterval +
+                ", wireLogEnabled=" + wireLogEnabled +
+                ", wireLogMaxBodySize=" + wireLogMaxBodySize +
+                ", wireLogSampleRate=" + wireLogSampleRate +
+                ", wireLogRedactedAttributes=" + Arrays.toString(wireLogRedactedAttributes) +
+                ", httpCompression=" + httpCompression +
+                ", httpRequestCompressionThreshold=" + httpRequestCompressionThreshold +
+                ", httpAsync=" + httpAsync +
+                ", httpAsyncIoThreads=" + httpAsyncIoThreads +
+                ", httpWarmUpConnections=" + httpWarmUpConnections +
+                ", readCoalescing=" + readCoalescing +
+                ", hedgeDelay=" + hedgeDelay +
+                ", hedgeBudget=" + hedgeBudget +
                 '}';
     }
 
@@ -15,10 +15,14 @@
  */
 package com.evolveum.polygon.connector.eduid;
 
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.*;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.util.EntityUtils;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
@@ -31,21 +35,29 @@ import org.identityconnectors.framework.spi.ConnectorClass;
 
 import com.evolveum.polygon.rest.AbstractRestConnector;
 import org.identityconnectors.framework.spi.PoolableConnector;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.framework.spi.operations.*;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.time.format.DateTimeFormatter;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author oscar
  *
  */
 @ConnectorClass(displayNameKey = "eduid.connector.display", configurationClass = EduIdConfiguration.class)
-public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> implements PoolableConnector, TestOp, SchemaOp, CreateOp, DeleteOp, UpdateOp, SearchOp<EduIdFilter> {
+public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> implements PoolableConnector, TestOp, SchemaOp, CreateOp, DeleteOp, UpdateOp,
+        UpdateAttributeValuesOp, UpdateDeltaOp, SearchOp<EduIdFilter>, SyncOp {
 
     private static final Log LOG = Log.getLog(EduIdConnector.class);
 
@@ -77,38 +89,163 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
     protected static final String[] REQUIRED_MULTI_ATTRIBUTES = {/* SCHEMAS, */EDU_PERSON_AFFILIATION, EMAIL};
     // TODO meta.* tags if returned - not mentioned in samples
 
+    protected static final String META = "meta";
+    protected static final String VERSION = "version";
+    protected static final String LAST_MODIFIED = "lastModified";
+
+    // SCIM PATCH
+    protected static final String PATCH_OP_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:PatchOp";
+    protected static final String PATCH_OP = "op";
+    protected static final String PATCH_VALUE = "value";
+
+    // SCIM ListResponse
+    protected static final String START_INDEX = "startIndex";
+    protected static final String COUNT = "count";
+    protected static final String TOTAL_RESULTS = "totalResults";
+    protected static final String RESOURCES = "Resources";
+    protected static final String FILTER = "filter";
+    protected static final String SORT_BY = "sortBy";
+    protected static final String SORT_ORDER = "sortOrder";
+
     private static String CONTENT_TYPE = "application/scim+json";
     protected static String AFFILIATION_OBJECT_CLASS = "affiliation"; // ObjectClass.ACCOUNT_NAME
     protected static String AFFILIATIONS = "Affiliations";
+    protected static String BULK = "Bulk";
     private static String UID = SWISS_EDU_PERSON_UNIQUE_ID;
 
+    // shared by all instances, the number of concurrent reads per search is limited by searchParallelism
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "eduid-fetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private EduIdAffiliationCache cache;
+    private EduIdSingleFlight singleFlight;
+    private EduIdHedging hedging;
+
+    private EduIdHttpTransport transport;
+    private EduIdWireLogger wireLogger;
+
+    // prepared by init from these credentials
+    private volatile Header authorization;
+    private volatile GuardedString authorizationPassword;
+    private volatile String authorizationUsername;
+
+    private EduIdMetrics metrics;
+    // metrics of the running operation, also used by its fan-out threads
+    private volatile EduIdOperationMetrics operationMetrics;
+
     @Override
     public void test() {
-        LOG.ok("test - reading ServiceProviderConfig");
+        long start = startOperation(EduIdMetrics.TEST);
+        boolean failed = false;
         try {
-            HttpGet request = new HttpGet(getConfiguration().getServiceAddress() + "/ServiceProviderConfig");
-            JSONObject response = callRequest(request, true);
-            LOG.ok("test - returning: {0}", response);
-        } catch (IOException e) {
-            throw new ConnectorIOException("Error when testing connection: " + e.getMessage(), e);
+            LOG.ok("test - reading ServiceProviderConfig");
+            try {
+                HttpGet request = new HttpGet(getConfiguration().getServiceAddress() + "/ServiceProviderConfig");
+                JSONObject response = callRequest(request, true);
+                LOG.ok("test - returning: {0}, {1}", response, transport);
+            } catch (IOException e) {
+                throw new ConnectorIOException("Error when testing connection: " + e.getMessage(), e);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
         }
     }
 
+    /**
+     * Wire logger of this connector instance, can be overridden e.g. to write the wire log elsewhere.
+     */
+    protected EduIdWireLogger createWireLogger(EduIdConfiguration configuration) {
+        return new EduIdWireLogger(configuration);
+    }
+
     @Override
     public void init(Configuration configuration) {
         super.init(configuration);
         LOG.ok("configuration: {0}", ((EduIdConfiguration) this.getConfiguration()).toString());
+        prepareAuthorization();
+        transport = EduIdHttpTransport.acquire(getConfiguration());
+        transport.warmUp(getConfiguration().getHttpWarmUpConnections());
+        wireLogger = createWireLogger(getConfiguration());
+        metrics = EduIdMetrics.forConfiguration(getConfiguration());
+        Integer cacheSize = getConfiguration().getCacheSize();
+        if (cacheSize != null && cacheSize > 0) {
+            cache = EduIdAffiliationCache.forConfiguration(getConfiguration());
+        }
+        if (Boolean.TRUE.equals(getConfiguration().getReadCoalescing())) {
+            singleFlight = EduIdSingleFlight.forConfiguration(getConfiguration());
+        }
+        Integer hedgeDelay = getConfiguration().getHedgeDelay();
+        if (hedgeDelay != null && hedgeDelay > 0 && getConfiguration().getHedgeBudget() > 0) {
+            hedging = EduIdHedging.forConfiguration(getConfiguration());
+        }
     }
 
     @Override
     public void dispose() {
+        if (cache != null) {
+            LOG.ok("dispose, cache statistics: {0}", cache);
+            cache = null;
+        }
+        if (singleFlight != null) {
+            LOG.ok("dispose, read coalescing statistics: {0}", singleFlight);
+            singleFlight = null;
+        }
+        if (hedging != null) {
+            LOG.ok("dispose, hedging statistics: {0}", hedging);
+            hedging = null;
+        }
+        if (transport != null) {
+            // closed by the last instance which uses it
+            transport.release();
+            transport = null;
+        }
+        authorization = null;
+        authorizationPassword = null;
         super.dispose();
     }
 
+    private long startOperation(String operation) {
+        operationMetrics = metrics.get(operation);
+        return System.nanoTime();
+    }
+
+    private void endOperation(long startNanos, boolean failed) {
+        operationMetrics.recordOperation(System.nanoTime() - startNanos, failed);
+    }
+
+    private void recordResponseRead(long startNanos, EduIdJsonDecoder decoder) {
+        EduIdOperationMetrics current = operationMetrics;
+        if (current != null) {
+            current.recordResponseRead(System.nanoTime() - startNanos, decoder == null ? 0 : decoder.getBytesRead());
+        }
+    }
+
+    /**
+     * @return HTTP transport shared with other instances of the same configuration, null before init and after dispose
+     */
+    public EduIdHttpTransport getTransport() {
+        return transport;
+    }
+
     @Override
     public Schema schema() {
         SchemaBuilder schemaBuilder = new SchemaBuilder(EduIdConnector.class);
         buildAffiliationObjectClass(schemaBuilder);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class, SyncOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class, SyncOp.class);
         return schemaBuilder.build();
     }
 
@@ -116,36 +253,8 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
         ObjectClassInfoBuilder objClassBuilder = new ObjectClassInfoBuilder();
         objClassBuilder.setType(AFFILIATION_OBJECT_CLASS);
 
-        for (String singleAttribute : SINGLE_STRING_ATTRIBUTES) {
-            AttributeInfoBuilder attrBuilder = new AttributeInfoBuilder(singleAttribute);
-            if (ArrayUtils.contains(REQUIRED_SINGLE_ATTRIBUTES, singleAttribute) || ArrayUtils.contains(REQUIRED_MULTI_ATTRIBUTES, singleAttribute)) {
-                attrBuilder.setRequired(true);
-            }
-            objClassBuilder.addAttributeInfo(attrBuilder.build());
-        }
-        for (String singleAttribute : SINGLE_INT_ATTRIBUTES) {
-            AttributeInfoBuilder attrBuilder = new AttributeInfoBuilder(singleAttribute, Integer.class);
-            if (ArrayUtils.contains(REQUIRED_SINGLE_ATTRIBUTES, singleAttribute) || ArrayUtils.contains(REQUIRED_MULTI_ATTRIBUTES, singleAttribute)) {
-                attrBuilder.setRequired(true);
-            }
-            objClassBuilder.addAttributeInfo(attrBuilder.build());
-        }
-
-        for (String multiAttribute : MULTI_STRING_ATTRIBUTES) {
-            AttributeInfoBuilder attrBuilder = new AttributeInfoBuilder(multiAttribute);
-            attrBuilder.setMultiValued(true);
-            if (ArrayUtils.contains(REQUIRED_SINGLE_ATTRIBUTES, multiAttribute) || ArrayUtils.contains(REQUIRED_MULTI_ATTRIBUTES, multiAttribute)) {
-                attrBuilder.setRequired(true);
-            }
-            objClassBuilder.addAttributeInfo(attrBuilder.build());
-        }
-        for (String multiAttribute : MULTI_INT_ATTRIBUTES) {
-            AttributeInfoBuilder attrBuilder = new AttributeInfoBuilder(multiAttribute, Integer.class);
-            attrBuilder.setMultiValued(true);
-            if (ArrayUtils.contains(REQUIRED_SINGLE_ATTRIBUTES, multiAttribute) || ArrayUtils.contains(REQUIRED_MULTI_ATTRIBUTES, multiAttribute)) {
-                attrBuilder.setRequired(true);
-            }
-            objClassBuilder.addAttributeInfo(attrBuilder.build());
+        for (EduIdAttribute attribute : EduIdAttribute.all()) {
+            objClassBuilder.addAttributeInfo(attribute.getAttributeInfo());
         }
 
         schemaBuilder.defineObjectClass(objClassBuilder.build());
@@ -154,120 +263,312 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
 
     @Override
     public Uid create(ObjectClass objectClass, Set<Attribute> attributes, OperationOptions operationOptions) {
-        if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {    // __ACCOUNT__
-            return createOrUpdateAffiliation(null, attributes);
-        } else {
-            // not found
-            throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+        long start = startOperation(EduIdMetrics.CREATE);
+        boolean failed = false;
+        try {
+            if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {    // __ACCOUNT__
+                return createOrUpdateAffiliation(null, attributes);
+            } else {
+                // not found
+                throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
         }
     }
 
     protected JSONObject callRequest(HttpEntityEnclosingRequestBase request, JSONObject jo) throws IOException {
-        // don't log request here - password field !!!
-        LOG.ok("request URI: {0}", request.getURI());
-        request.setHeader("Content-Type", CONTENT_TYPE);
-
-        authHeader(request);
+        setEntity(request, jo);
+        return callRequest(request, true);
+    }
 
-        HttpEntity entity = new ByteArrayEntity(jo.toString().getBytes("UTF-8"));
+    private void setEntity(HttpEntityEnclosingRequestBase request, JSONObject jo) throws IOException {
+        // don't log request here - password field !!! EduIdWireLogger logs it redacted
+        // small bodies are serialized here, larger ones while they are sent, counted in the response wait time
+        HttpEntity entity = new EduIdJsonEntity(jo, CONTENT_TYPE);
+        int compressionThreshold = getConfiguration().getHttpRequestCompressionThreshold();
+        if (Boolean.TRUE.equals(getConfiguration().getHttpCompression()) && compressionThreshold > 0
+                && EduIdJsonEntity.estimateSize(jo) >= compressionThreshold) {
+            // compressed while it is written, repeatable for retries like the wrapped entity
+            entity = new GzipCompressingEntity(entity);
+        }
         request.setEntity(entity);
-        CloseableHttpResponse response = execute(request);
-        LOG.ok("response: {0}", response);
-        processEduIdResponseErrors(response);
-
-        String result = EntityUtils.toString(response.getEntity(), "UTF-8");
-        LOG.ok("response body: {0}", result);
-        closeResponse(response);
-        return new JSONObject(result);
     }
 
     protected JSONObject callRequest(HttpRequestBase request, boolean parseResult) throws IOException {
-        LOG.ok("request URI: {0}", request.getURI());
-        request.setHeader("Content-Type", CONTENT_TYPE);
+        CloseableHttpResponse response = sendRequest(request);
+        long start = System.nanoTime();
+        EduIdJsonDecoder decoder = null;
+        try {
+            if (!parseResult) {
+                return null;
+            }
+            decoder = openDecoder(response, null);
+            JSONObject result = decoder == null ? null : decoder.readObject();
+            return result;
+        } finally {
+            recordResponseRead(start, decoder);
+            closeResponse(response);
+        }
+    }
 
-        authHeader(request);
+    protected JSONArray callRequest(HttpRequestBase request) throws IOException {
+        CloseableHttpResponse response = sendRequest(request);
+        long start = System.nanoTime();
+        EduIdJsonDecoder decoder = null;
+        try {
+            decoder = openDecoder(response, null);
+            JSONArray result = decoder == null ? null : decoder.readArray();
+            return result;
+        } finally {
+            recordResponseRead(start, decoder);
+            closeResponse(response);
+        }
+    }
 
-        CloseableHttpResponse response = null;
-        response = execute(request);
-        LOG.ok("response: {0}", response);
-        processEduIdResponseErrors(response);
+    /**
+     * Reads the affiliation from the response stream, returns null when response has no body.
+     */
+    protected ConnectorObject callAffiliationRequest(HttpRequestBase request) throws IOException {
+        return callAffiliationRequest(request, null);
+    }
+
+    /**
+     * @param projection attributes which are read, null for all
+     */
+    protected ConnectorObject callAffiliationRequest(HttpRequestBase request, EduIdProjection projection) throws IOException {
+        return readAffiliationResponse(sendRequest(request), projection);
+    }
 
-        if (!parseResult) {
+    /**
+     * Read of one affiliation by UID, the only request which is hedged.
+     */
+    private ConnectorObject callReadRequest(HttpGet request, EduIdProjection projection) throws IOException {
+        return readAffiliationResponse(sendRequest(request, true), projection);
+    }
+
+    private ConnectorObject readAffiliationResponse(CloseableHttpResponse response, EduIdProjection projection) throws IOException {
+        long start = System.nanoTime();
+        EduIdJsonDecoder decoder = null;
+        try {
+            decoder = openDecoder(response, projection);
+            return decoder == null ? null : decoder.readAffiliation();
+        } finally {
+            recordResponseRead(start, decoder);
             closeResponse(response);
-            return null;
         }
-        String result = EntityUtils.toString(response.getEntity(), "UTF-8");
-        LOG.ok("response body: {0}", result);
-        closeResponse(response);
-        return new JSONObject(result);
     }
 
-    private void authHeader(HttpRequestBase request){
-        // to prevent several calls http://stackoverflow.com/questions/20914311/httpclientbuilder-basic-auth
-        // auth header
-        final StringBuilder sb = new StringBuilder();
-        if (getConfiguration().getPassword() != null) {
-            getConfiguration().getPassword().access(new GuardedString.Accessor() {
-                @Override
-                public void access(char[] chars) {
-                    sb.append(new String(chars));
-                }
-            });
-        } else {
-            return;
+    /**
+     * Streams SCIM ListResponse to the handler, returns null when response has no body.
+     */
+    protected EduIdJsonDecoder.ListPage callListRequest(HttpRequestBase request, ResultsHandler handler) throws IOException {
+        return callListRequest(request, handler, new EduIdJsonDecoder.ListPage());
+    }
+
+    protected EduIdJsonDecoder.ListPage callListRequest(HttpRequestBase request, ResultsHandler handler, EduIdJsonDecoder.ListPage page) throws IOException {
+        return callListRequest(request, handler, page, null);
+    }
+
+    /**
+     * @param projection attributes which are read, null for all
+     */
+    protected EduIdJsonDecoder.ListPage callListRequest(HttpRequestBase request, ResultsHandler handler, EduIdJsonDecoder.ListPage page,
+                                                        EduIdProjection projection) throws IOException {
+        CloseableHttpResponse response = sendRequest(request);
+        // includes time spent in the handler, results are streamed to it
+        long start = System.nanoTime();
+        EduIdJsonDecoder decoder = null;
+        try {
+            decoder = openDecoder(response, projection);
+            return decoder == null ? null : decoder.readListResponse(handler, page);
+        } finally {
+            recordResponseRead(start, decoder);
+            closeResponse(response);
         }
-        byte[] credentials = org.apache.commons.codec.binary.Base64.encodeBase64((getConfiguration().getUsername() + ":" + sb.toString()).getBytes(StandardCharsets.UTF_8));
-        request.setHeader("Authorization", "Basic " + new String(credentials, StandardCharsets.UTF_8));
     }
 
-    protected JSONArray callRequest(HttpRequestBase request) throws IOException {
+    private CloseableHttpResponse sendRequest(HttpRequestBase request) {
+        return sendRequest(request, false);
+    }
+
+    /**
+     * @param hedgeable true for reads by UID, other requests (pages, sync, updates) are never hedged
+     */
+    private CloseableHttpResponse sendRequest(HttpRequestBase request, boolean hedgeable) {
+        prepareRequest(request);
+        return sendPreparedRequest(request, null, 0, hedgeable);
+    }
+
+    private void prepareRequest(HttpRequestBase request) {
         LOG.ok("request URI: {0}", request.getURI());
         request.setHeader("Content-Type", CONTENT_TYPE);
 
         authHeader(request);
+        wireLogger.logRequest(request);
+    }
 
-        CloseableHttpResponse response = execute(request);
-        LOG.ok("response: {0}", response);
-        processEduIdResponseErrors(response);
-
-        String result = EntityUtils.toString(response.getEntity(), "UTF-8");
-        LOG.ok("response body: {0}", result);
-        closeResponse(response);
-        return new JSONArray(result);
+    /**
+     * Sends the first attempt without waiting for the response, after the circuit breaker and rate limiter.
+     * The response is processed by {@link #sendPreparedRequest(HttpRequestBase, Future, long, boolean)}.
+     */
+    private Future<HttpResponse> sendAsyncRequest(HttpRequestBase request) {
+        prepareRequest(request);
+        EduIdHealthMonitor.forConfiguration(getConfiguration()).checkClosed();
+        EduIdRateLimiter.forConfiguration(getConfiguration()).acquire();
+        return transport.executeAsync(request);
     }
 
-    private void processEduIdResponseErrors(CloseableHttpResponse response){
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode == 409) {
-            String result = null;
-            try {
-                result = EntityUtils.toString(response.getEntity(), "UTF-8");
-                LOG.ok("Result body: {0}", result);
-            } catch (IOException e) {
-                throw new ConnectorIOException("Error when trying to get response entity: "+response, e);
+    /**
+     * @param sent first attempt already sent by {@link #sendAsyncRequest(HttpRequestBase)}, null to send it now
+     * @param sentNanos System.nanoTime() when the first attempt was sent
+     * @param hedgeable attempts may be hedged, see {@link EduIdHedging}
+     */
+    private CloseableHttpResponse sendPreparedRequest(HttpRequestBase request, Future<HttpResponse> sent, long sentNanos, boolean hedgeable) {
+        EduIdHealthMonitor healthMonitor = EduIdHealthMonitor.forConfiguration(getConfiguration());
+        EduIdRateLimiter rateLimiter = EduIdRateLimiter.forConfiguration(getConfiguration());
+        boolean idempotent = isIdempotent(request);
+        for (int attempt = 0; ; attempt++) {
+            boolean retry = idempotent && attempt < getConfiguration().getMaxRetries();
+            boolean pending = attempt == 0 && sent != null;
+            if (!pending) {
+                healthMonitor.checkClosed();
+                rateLimiter.acquire();
             }
-            String errDetail, scimType;
+            EduIdOperationMetrics currentMetrics = operationMetrics;
+            CloseableHttpResponse response;
+            long start = pending ? sentNanos : System.nanoTime();
             try {
-                JSONObject jo = new JSONObject(result);
-                errDetail = jo.getString("detail");
-                scimType = jo.getString("scimType");
-            } catch (JSONException e) {
-                closeResponse(response);
-                throw new ConnectorIOException(e.getMessage() + " when parsing result: " + result, e);
+                response = pending ? transport.await(sent, request) : execute(request, currentMetrics, hedgeable);
+            } catch (ConnectorIOException e) {
+                // the circuit breaker counts only the final outcome, not the attempts which are retried
+                if (!retry) {
+                    healthMonitor.recordFailure();
+                    throw e;
+                }
+                LOG.warn("Retrying {0} {1} after I/O error: {2}", request.getMethod(), request.getURI(), e.getMessage());
+                if (currentMetrics != null) {
+                    currentMetrics.recordRetry();
+                }
+                rateLimiter.backoff(attempt, 0);
+                continue;
             }
+            long waitNanos = System.nanoTime() - start;
+            LOG.ok("response: {0}, {1}", response, transport);
+            wireLogger.logResponse(request, response, waitNanos);
 
-            if ("uniqueness".equals(scimType)) {
-                closeResponse(response);
-                throw new AlreadyExistsException("uniqueness: " + errDetail);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (currentMetrics != null) {
+                HttpEntity entity = request instanceof HttpEntityEnclosingRequestBase ? ((HttpEntityEnclosingRequestBase) request).getEntity() : null;
+                long requestBytes = entity instanceof EduIdJsonEntity ? ((EduIdJsonEntity) entity).getWrittenLength()
+                        : entity == null ? 0 : entity.getContentLength();
+                currentMetrics.recordRequest(waitNanos, statusCode, requestBytes);
+            }
+            if (statusCode == 429 || statusCode == 503) {
+                long retryAfterNanos = rateLimiter.onThrottled(response);
+                if (retry) {
+                    // throttling is normal under load, it must not open the circuit
+                    closeResponse(response);
+                    if (currentMetrics != null) {
+                        currentMetrics.recordRetry();
+                    }
+                    rateLimiter.backoff(attempt, retryAfterNanos);
+                    continue;
+                }
             } else {
-                closeResponse(response);
-                throw new ConnectorIOException("Error when process response: " + result);
+                rateLimiter.onSuccess();
+            }
+            if (statusCode >= 500) {
+                healthMonitor.recordFailure();
+            } else {
+                healthMonitor.recordSuccess();
             }
-        } else if (statusCode == 400) {
+            processEduIdResponseErrors(response);
+            return response;
+        }
+    }
+
+    private CloseableHttpResponse execute(HttpRequestBase request, EduIdOperationMetrics currentMetrics, boolean hedgeable) {
+        if (hedgeable && hedging != null) {
+            return hedging.execute(transport, request, currentMetrics);
+        }
+        return transport.execute(request);
+    }
+
+    /**
+     * Requests which can be sent again without side effects, the entity of PUT is repeatable.
+     */
+    private boolean isIdempotent(HttpRequestBase request) {
+        String method = request.getMethod();
+        return HttpGet.METHOD_NAME.equals(method) || HttpPut.METHOD_NAME.equals(method) || HttpDelete.METHOD_NAME.equals(method);
+    }
+
+    private EduIdJsonDecoder openDecoder(CloseableHttpResponse response, EduIdProjection projection) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        return new EduIdJsonDecoder(entity.getContent(), getConfiguration().getMaxResponseSize(), projection);
+    }
+
+    private void authHeader(HttpRequestBase request){
+        EduIdConfiguration configuration = getConfiguration();
+        if (configuration.getPassword() != authorizationPassword || !Objects.equals(configuration.getUsername(), authorizationUsername)) {
+            // credentials were changed on the configuration object after init
+            prepareAuthorization();
+        }
+        if (authorization != null) {
+            request.setHeader(authorization);
+        }
+    }
+
+    /**
+     * Builds the Authorization header once, the password is decrypted only here. The header is kept only
+     * by this instance, it is never logged and it is dropped by dispose.
+     */
+    private synchronized void prepareAuthorization() {
+        // to prevent several calls http://stackoverflow.com/questions/20914311/httpclientbuilder-basic-auth
+        GuardedString password = getConfiguration().getPassword();
+        final String username = getConfiguration().getUsername();
+        Header header = null;
+        if (password != null) {
+            final byte[][] credentials = new byte[1][];
+            password.access(new GuardedString.Accessor() {
+                @Override
+                public void access(char[] chars) {
+                    String user = String.valueOf(username);
+                    CharBuffer userPass = CharBuffer.allocate(user.length() + 1 + chars.length);
+                    userPass.put(user).put(':').put(chars).flip();
+                    ByteBuffer encoded = StandardCharsets.UTF_8.encode(userPass);
+                    byte[] plain = new byte[encoded.remaining()];
+                    encoded.get(plain);
+                    credentials[0] = org.apache.commons.codec.binary.Base64.encodeBase64(plain);
+                    // don't leave the clear text password around
+                    Arrays.fill(userPass.array(), '\0');
+                    Arrays.fill(plain, (byte) 0);
+                    if (encoded.hasArray()) {
+                        Arrays.fill(encoded.array(), (byte) 0);
+                    }
+                }
+            });
+            header = new BasicHeader(HttpHeaders.AUTHORIZATION, "Basic " + new String(credentials[0], StandardCharsets.US_ASCII));
+        }
+        // header first, the credentials are compared without lock
+        authorization = header;
+        authorizationUsername = username;
+        authorizationPassword = password;
+    }
+
+    private void processEduIdResponseErrors(CloseableHttpResponse response){
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == 409 || statusCode == 400) {
             String result = null;
             try {
+                // not logged here, the wire log has the body redacted and truncated
                 result = EntityUtils.toString(response.getEntity(), "UTF-8");
-                LOG.ok("Result body: {0}", result);
             } catch (IOException e) {
                 throw new ConnectorIOException("Error when trying to get response entity: "+response, e);
             }
@@ -281,27 +582,48 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
                 throw new ConnectorIOException(e.getMessage() + " when parsing result: " + result, e);
             }
 
-            if ("invalidValue".equals(scimType)) {
-                closeResponse(response);
-                throw new InvalidAttributeValueException("invalidValue: " + errDetail);
-            } else {
-                closeResponse(response);
-                throw new ConnectorIOException("Error when process response: " + result);
-            }
+            closeResponse(response);
+            throw scimError(statusCode, scimType, errDetail, result);
+        } else if (statusCode == 429 || statusCode == 503) {
+            closeResponse(response);
+            throw RetryableException.wrap("Request throttled by server, status " + statusCode, new ConnectorIOException(response.toString()));
+        } else if (statusCode == 412) {
+            closeResponse(response);
+            throw new PreconditionFailedException("Version mismatch (If-Match) for " + response);
         }
         super.processResponseErrors(response);
     }
 
+    /**
+     * Maps SCIM error to connector exception, used for whole responses and for single /Bulk operations.
+     */
+    static ConnectorException scimError(int statusCode, String scimType, String errDetail, String result) {
+        if (statusCode == 409 && "uniqueness".equals(scimType)) {
+            return new AlreadyExistsException("uniqueness: " + errDetail);
+        } else if (statusCode == 400 && "invalidValue".equals(scimType)) {
+            return new InvalidAttributeValueException("invalidValue: " + errDetail);
+        } else if (statusCode == 404) {
+            return new UnknownUidException("Not found: " + errDetail);
+        } else if (statusCode == 429 || statusCode == 503) {
+            return RetryableException.wrap("Throttled by server: " + errDetail, new ConnectorIOException(result));
+        } else if (statusCode == 412) {
+            return new PreconditionFailedException("Version mismatch: " + errDetail);
+        }
+        return new ConnectorIOException("Error when process response: " + result);
+    }
+
     private Uid createOrUpdateAffiliation(Uid uid, Set<Attribute> attributes) {
-        LOG.ok("createOrUpdateAffiliation, Uid: {0}, attributes: {1}", uid, attributes);
+        LOG.ok("createOrUpdateAffiliation, Uid: {0}, attributes: {1}", uid, wireLogger.redacted(attributes));
         if (attributes == null || attributes.isEmpty()) {
             LOG.ok("request ignored, empty attributes");
             return uid;
         }
         boolean create = uid == null;
         JSONObject jo = new JSONObject();
+        String version = null;
         if (!create) {
-            // update, need to read old values
+            // update, need to read old values; not from the cache, PUT replaces the whole resource,
+            // so schemas and attributes unknown to the connector must be sent back as they are
             try {
                 HttpGet request = new HttpGet(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + uid.getUidValue());
                 jo = callRequest(request, true);
@@ -311,38 +633,36 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
             if (jo == null) {
                 throw new UnknownUidException("Affiliation with ID " + uid.getUidValue() + " does not exist");
             }
+            JSONObject meta = jo.optJSONObject(META);
+            version = meta == null ? null : meta.optString(VERSION, null);
+            if (uid.getRevision() != null && version != null && !uid.getRevision().equals(version)) {
+                throw new PreconditionFailedException("Affiliation with ID " + uid.getUidValue() + " was modified, expected version "
+                        + uid.getRevision() + ", current version " + version);
+            }
         }
         else {
-            // check mandatory attributes
-            for (String required : REQUIRED_SINGLE_ATTRIBUTES) {
-                String value = getStringAttr(attributes, required);
-                if (StringUtil.isBlank(value)) {
-                    throw new InvalidAttributeValueException("Missing mandatory attribute " + required+" ,value: "+value);
-                }
-            }
-
-            for (String required : REQUIRED_MULTI_ATTRIBUTES) {
-                String[] values = getMultiValAttr(attributes, required, null);
-                if (values==null || values.length==0) {
-                    throw new InvalidAttributeValueException("Missing mandatory attribute " + required+" ,value: "+values);
-                }
-            }
             //static
             String schema[] = {SCHEMAS_VALUE};
             jo.put(SCHEMAS, schema);
         }
 
-        for (String attribute : SINGLE_STRING_ATTRIBUTES){
-            putStringIfExists(attributes, attribute, jo);
-        }
-        for (String attribute : MULTI_STRING_ATTRIBUTES){
-            putStringArrayIfExists(attributes, attribute, jo);
-        }
-        for (String attribute : MULTI_INT_ATTRIBUTES){
-            putIntArrayIfExists(attributes, attribute, jo);
+        boolean changed = mergeAttributes(jo, attributes, create);
+
+        if (!create && !changed) {
+            LOG.ok("request ignored, affiliation {0} already has the same values", uid.getUidValue());
+            return new Uid(uid.getUidValue(), version);
         }
 
-        LOG.ok("affiliation request: {0}", jo.toString());
+
+        if (Boolean.TRUE.equals(getConfiguration().getBulkEnabled())) {
+            String path = "/" + AFFILIATIONS + (create ? "" : "/" + uid.getUidValue());
+            JSONObject result = EduIdBulkProcessor.forConfiguration(getConfiguration()).execute(this, create ? "POST" : "PUT", path, version, jo);
+            String newUid = bulkResultUid(result, create ? jo.getString(UID) : uid.getUidValue());
+            LOG.info("bulk response UID: {0}", newUid);
+            // bulk response doesn't contain the affiliation
+            invalidateCache(uid);
+            return new Uid(newUid, result.optString(VERSION, null));
+        }
 
         try {
             HttpEntityEnclosingRequestBase request;
@@ -351,35 +671,144 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
             } else {
                 // update
                 request = new HttpPut(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + uid.getUidValue());
+                ifMatch(request, version);
+            }
+            setEntity(request, jo);
+            ConnectorObject response = callAffiliationRequest(request);
+            if (response == null) {
+                throw new ConnectorIOException("Missing affiliation in response for " + request.getURI());
             }
-            JSONObject joResponse = callRequest(request, jo);
 
-            String newUid = joResponse.getString(UID);
-            LOG.info("response UID: {0}", newUid);
-            return new Uid(newUid);
+            LOG.info("response UID: {0}", response.getUid().getUidValue());
+            invalidateCache(uid);
+            if (cache != null) {
+                cache.put(response);
+            }
+            return response.getUid();
         } catch (IOException e) {
             throw new ConnectorIOException(e.getMessage(), e);
         }
     }
 
 
-    private void putStringIfExists(Set<Attribute> attributes, String fieldName, JSONObject jo) {
-        String fieldValue = getStringAttr(attributes, fieldName);
-        if (fieldValue != null) {
-            jo.put(fieldName, fieldValue);
+    /**
+     * Bulk response doesn't contain the resource, UID is taken from its location if present.
+     */
+    private String bulkResultUid(JSONObject result, String defaultUid) {
+        String location = result.optString(EduIdBulkProcessor.LOCATION, null);
+        if (StringUtil.isBlank(location)) {
+            return defaultUid;
+        }
+        return location.substring(location.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Puts changed attributes into the affiliation JSON in a single pass, on create checks mandatory attributes.
+     *
+     * @return true when some attribute was changed
+     */
+    static boolean mergeAttributes(JSONObject jo, Set<Attribute> attributes, boolean create) {
+        boolean changed = false;
+        for (Attribute attribute : attributes) {
+            EduIdAttribute descriptor = EduIdAttribute.get(attribute.getName());
+            if (descriptor == null) {
+                continue;
+            }
+            Object value = descriptor.toJson(attribute.getValue());
+            if (value != null && (create || !descriptor.sameValue(jo.opt(descriptor.getName()), value))) {
+                jo.put(descriptor.getName(), value);
+                changed = true;
+            }
+        }
+
+        if (create) {
+            // check mandatory attributes
+            for (EduIdAttribute descriptor : EduIdAttribute.all()) {
+                Object value = jo.opt(descriptor.getName());
+                if (descriptor.isRequired() && !descriptor.hasValue(value)) {
+                    throw new InvalidAttributeValueException("Missing mandatory attribute " + descriptor.getName() + " ,value: " + value);
+                }
+            }
         }
+        return changed;
     }
 
-    private void putStringArrayIfExists(Set<Attribute> attributes, String attributeName, JSONObject jo) {
-        String[] values = getMultiValAttr(attributes, attributeName, null);
-        if (values != null) {
-            jo.put(attributeName, values);
+    /**
+     * Reads affiliation through the cache for searches by UID, returns null when response has no body.
+     * Updates don't use it, they need the whole resource.
+     *
+     * @param projection attributes which are read, null for all; projected affiliations are not cached
+     */
+    private ConnectorObject readAffiliation(String uid, final EduIdProjection projection) throws IOException {
+        ConnectorObject cached = cachedAffiliation(uid, projection);
+        if (cached != null) {
+            return cached;
+        }
+        final HttpGet request = affiliationRequest(uid, projection);
+        long readStarted = startRead();
+        ConnectorObject connectorObject;
+        if (singleFlight != null) {
+            connectorObject = singleFlight.execute(request.getMethod(), request.getURI().toString(), uid, new EduIdSingleFlight.Read() {
+                @Override
+                public ConnectorObject read() throws IOException {
+                    return callReadRequest(request, projection);
+                }
+            });
+        } else {
+            connectorObject = callReadRequest(request, projection);
         }
+        cacheAffiliation(connectorObject, projection, readStarted);
+        return connectorObject;
     }
-    private void putIntArrayIfExists(Set<Attribute> attributes, String attributeName, JSONObject jo) {
-        Integer[] values = getIntMultiValAttr(attributes, attributeName, null);
-        if (values != null) {
-            jo.put(attributeName, values);
+
+    private ConnectorObject cachedAffiliation(String uid, EduIdProjection projection) {
+        if (cache != null) {
+            ConnectorObject cached = cache.get(uid);
+            if (cached != null) {
+                return projection == null ? cached : projection.apply(cached);
+            }
+        }
+        return null;
+    }
+
+    private HttpGet affiliationRequest(String uid, EduIdProjection projection) {
+        return new HttpGet(EduIdProjection.appendTo(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + uid, projection));
+    }
+
+    private long startRead() {
+        return cache != null ? cache.startRead() : 0;
+    }
+
+    /**
+     * @param readStarted {@link #startRead()} taken before the request was sent, the response of a read
+     *                    overtaken by a write is not cached
+     */
+    private void cacheAffiliation(ConnectorObject connectorObject, EduIdProjection projection, long readStarted) {
+        if (connectorObject != null && cache != null && projection == null && !cache.put(connectorObject, readStarted)) {
+            LOG.ok("affiliation {0} was modified during the read, not cached", connectorObject.getUid().getUidValue());
+        }
+    }
+
+    private static String urlEncode(String value) throws IOException {
+        // URLEncoder is for forms, query parameters need %20 for space
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+
+    private void invalidateCache(Uid uid) {
+        if (cache != null && uid != null) {
+            cache.invalidate(uid.getUidValue());
+        }
+        if (singleFlight != null && uid != null) {
+            singleFlight.invalidate(uid.getUidValue());
+        }
+    }
+
+    /**
+     * Sends If-Match, so the write fails with 412 when the affiliation was changed in between.
+     */
+    private void ifMatch(HttpRequestBase request, String version) {
+        if (version != null) {
+            request.setHeader("If-Match", version);
         }
     }
 
@@ -397,8 +826,7 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
                     if (valAsObject == null)
                         throw new InvalidAttributeValueException("Value " + null + " must be not null for attribute " + attrName);
 
-                    Integer val = Integer.parseInt((String)valAsObject);
-                    ret[i] = val;
+                    ret[i] = valAsObject instanceof Integer ? (Integer) valAsObject : Integer.valueOf(String.valueOf(valAsObject));
                 }
                 return ret;
             }
@@ -406,36 +834,248 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
         // set default value when attrName not in changed attributes
         return defaultVal;
     }
+    /**
+     * Cheap when the endpoint answered within aliveTtl, fails fast while the circuit breaker is open.
+     */
     @Override
     public void checkAlive() {
-        test();
+        // called on every checkout from the pool, not measured; the probe isn't counted in the previous operation
+        operationMetrics = null;
+        EduIdHealthMonitor healthMonitor = EduIdHealthMonitor.forConfiguration(getConfiguration());
+        healthMonitor.checkClosed();
+        if (healthMonitor.isAlive()) {
+            return;
+        }
+        LOG.ok("checkAlive - probing {0}", healthMonitor);
+        try {
+            // response body is not needed
+            callRequest(new HttpGet(getConfiguration().getServiceAddress() + "/ServiceProviderConfig"), false);
+        } catch (IOException e) {
+            throw new ConnectorIOException("Error when checking connection: " + e.getMessage(), e);
+        }
     }
 
     @Override
     public void delete(ObjectClass objectClass, Uid uid, OperationOptions operationOptions) {
+        long start = startOperation(EduIdMetrics.DELETE);
+        boolean failed = false;
+        try {
+            try {
+                if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {
+                    LOG.ok("delete affiliation, Uid: {0}", uid);
+                    if (Boolean.TRUE.equals(getConfiguration().getBulkEnabled())) {
+                        EduIdBulkProcessor.forConfiguration(getConfiguration()).execute(this, "DELETE", "/" + AFFILIATIONS + "/" + uid.getUidValue(), uid.getRevision(), null);
+                        invalidateCache(uid);
+                        return;
+                    }
+                    HttpDelete request = new HttpDelete(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + uid.getUidValue());
+                    ifMatch(request, uid.getRevision());
+                    try {
+                        callRequest(request, false);
+                    } finally {
+                        invalidateCache(uid);
+                    }
+                } else {
+                    // not found
+                    throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+                }
+            } catch (IOException e) {
+                throw new ConnectorIOException(e.getMessage(), e);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
+        }
+    }
+
+    public Uid update(ObjectClass objectClass, Uid uid, Set<Attribute> attributes, OperationOptions operationOptions) {
+        long start = startOperation(EduIdMetrics.UPDATE);
+        boolean failed = false;
         try {
             if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {
-                LOG.ok("delete affiliation, Uid: {0}", uid);
-                HttpDelete request = new HttpDelete(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + uid.getUidValue());
-                callRequest(request, false);
+                return createOrUpdateAffiliation(uid, attributes);
             } else {
                 // not found
                 throw new UnsupportedOperationException("Unsupported object class " + objectClass);
             }
-        } catch (IOException e) {
-            throw new ConnectorIOException(e.getMessage(), e);
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
         }
     }
 
-    public Uid update(ObjectClass objectClass, Uid uid, Set<Attribute> attributes, OperationOptions operationOptions) {
-        if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {
-            return createOrUpdateAffiliation(uid, attributes);
-        } else {
+    @Override
+    public Uid addAttributeValues(ObjectClass objectClass, Uid uid, Set<Attribute> valuesToAdd, OperationOptions operationOptions) {
+        long start = startOperation(EduIdMetrics.UPDATE);
+        boolean failed = false;
+        try {
+            return patchAttributeValues(objectClass, uid, valuesToAdd, "add");
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
+        }
+    }
+
+    @Override
+    public Uid removeAttributeValues(ObjectClass objectClass, Uid uid, Set<Attribute> valuesToRemove, OperationOptions operationOptions) {
+        long start = startOperation(EduIdMetrics.UPDATE);
+        boolean failed = false;
+        try {
+            return patchAttributeValues(objectClass, uid, valuesToRemove, "remove");
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
+        }
+    }
+
+    private Uid patchAttributeValues(ObjectClass objectClass, Uid uid, Set<Attribute> attributes, String op) {
+        if (!objectClass.is(AFFILIATION_OBJECT_CLASS)) {
             // not found
             throw new UnsupportedOperationException("Unsupported object class " + objectClass);
         }
+        LOG.ok("patchAttributeValues, Uid: {0}, op: {1}, attributes: {2}", uid, op, wireLogger.redacted(attributes));
+        JSONArray operations = new JSONArray();
+        if (attributes != null) {
+            for (Attribute attribute : attributes) {
+                EduIdAttribute descriptor = patchAttribute(attribute.getName());
+                if (descriptor.isMultiValued()) {
+                    addPatchOperation(operations, op, descriptor, attribute.getValue());
+                } else if ("add".equals(op)) {
+                    addPatchOperation(operations, "replace", descriptor, attribute.getValue());
+                } else {
+                    addPatchOperation(operations, "remove", descriptor, null);
+                }
+            }
+        }
+        return patchAffiliation(uid, operations);
+    }
+
+    @Override
+    public Set<AttributeDelta> updateDelta(ObjectClass objectClass, Uid uid, Set<AttributeDelta> modifications, OperationOptions operationOptions) {
+        long start = startOperation(EduIdMetrics.UPDATE);
+        boolean failed = false;
+        try {
+            if (!objectClass.is(AFFILIATION_OBJECT_CLASS)) {
+                // not found
+                throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+            }
+            LOG.ok("updateDelta, Uid: {0}, modifications: {1}", uid, wireLogger.redacted(modifications));
+            JSONArray operations = new JSONArray();
+            if (modifications != null) {
+                for (AttributeDelta delta : modifications) {
+                    EduIdAttribute descriptor = patchAttribute(delta.getName());
+                    if (descriptor.isMultiValued()) {
+                        if (delta.getValuesToReplace() != null) {
+                            addPatchOperation(operations, "replace", descriptor, delta.getValuesToReplace());
+                        } else {
+                            addPatchOperation(operations, "add", descriptor, delta.getValuesToAdd());
+                            addPatchOperation(operations, "remove", descriptor, delta.getValuesToRemove());
+                        }
+                    } else if (delta.getValuesToReplace() != null) {
+                        addPatchOperation(operations, "replace", descriptor, delta.getValuesToReplace());
+                    } else if (delta.getValuesToAdd() != null && !delta.getValuesToAdd().isEmpty()) {
+                        addPatchOperation(operations, "replace", descriptor, delta.getValuesToAdd());
+                    } else if (delta.getValuesToRemove() != null && !delta.getValuesToRemove().isEmpty()) {
+                        addPatchOperation(operations, "remove", descriptor, null);
+                    }
+                }
+            }
+
+            Uid newUid = patchAffiliation(uid, operations);
+            Set<AttributeDelta> sideEffects = new HashSet<>();
+            if (!uid.getUidValue().equals(newUid.getUidValue())) {
+                sideEffects.add(AttributeDeltaBuilder.build(Uid.NAME, newUid.getUidValue()));
+            }
+            return sideEffects;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
+        }
+    }
+
+    private EduIdAttribute patchAttribute(String attrName) {
+        if (Uid.NAME.equals(attrName) || Name.NAME.equals(attrName)) {
+            attrName = UID;
+        }
+        EduIdAttribute descriptor = EduIdAttribute.get(attrName);
+        if (descriptor == null) {
+            throw new InvalidAttributeValueException("Unsupported attribute " + attrName);
+        }
+        return descriptor;
     }
 
+    /**
+     * Adds SCIM PATCH operation, "replace" without values is sent as "remove" of the whole attribute.
+     * Values of multi-valued attributes are sent also for "remove", so only the listed values are removed.
+     */
+    private void addPatchOperation(JSONArray operations, String op, EduIdAttribute descriptor, List<Object> values) {
+        boolean multiValued = descriptor.isMultiValued();
+        boolean noValues = values == null || values.isEmpty();
+        if ("replace".equals(op) && noValues) {
+            op = "remove";
+        } else if (multiValued && noValues) {
+            // nothing to add or remove
+            return;
+        }
+        boolean removeAttribute = "remove".equals(op) && (noValues || !multiValued);
+        if (removeAttribute && descriptor.isRequired()) {
+            throw new InvalidAttributeValueException("Missing mandatory attribute " + descriptor.getName());
+        }
+
+        JSONObject operation = new JSONObject();
+        operation.put(PATCH_OP, op);
+        operation.put(EduIdBulkProcessor.PATH, descriptor.getName());
+        if (!removeAttribute) {
+            operation.put(PATCH_VALUE, descriptor.toJson(values));
+        }
+        operations.put(operation);
+    }
+
+    private Uid patchAffiliation(Uid uid, JSONArray operations) {
+        if (operations.length() == 0) {
+            LOG.ok("request ignored, empty modifications");
+            return uid;
+        }
+        JSONObject patch = new JSONObject();
+        String schema[] = {PATCH_OP_SCHEMA};
+        patch.put(SCHEMAS, schema);
+        patch.put(EduIdBulkProcessor.OPERATIONS, operations);
+
+        if (Boolean.TRUE.equals(getConfiguration().getBulkEnabled())) {
+            JSONObject result = EduIdBulkProcessor.forConfiguration(getConfiguration()).execute(this, "PATCH", "/" + AFFILIATIONS + "/" + uid.getUidValue(), uid.getRevision(), patch);
+            invalidateCache(uid);
+            return new Uid(bulkResultUid(result, uid.getUidValue()), result.optString(VERSION, null));
+        }
+
+        try {
+            HttpPatch request = new HttpPatch(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + uid.getUidValue());
+            // no read before PATCH, conflicts are detected only when the caller knows the revision
+            ifMatch(request, uid.getRevision());
+            setEntity(request, patch);
+            ConnectorObject response = callAffiliationRequest(request);
+            invalidateCache(uid);
+            // 204 No Content when server doesn't return the resource
+            if (response == null) {
+                return uid;
+            }
+            if (cache != null) {
+                cache.put(response);
+            }
+            return response.getUid();
+        } catch (IOException e) {
+            throw new ConnectorIOException(e.getMessage(), e);
+        }
+    }
 
     @Override
     public FilterTranslator<EduIdFilter> createFilterTranslator(ObjectClass objectClass, OperationOptions operationOptions) {
@@ -444,112 +1084,341 @@ public class EduIdConnector extends AbstractRestConnector<EduIdConfiguration> im
 
     @Override
     public void executeQuery(ObjectClass objectClass, EduIdFilter query, ResultsHandler handler, OperationOptions options) {
+        long start = startOperation(query != null && query.byUid != null ? EduIdMetrics.GET : EduIdMetrics.SEARCH);
+        boolean failed = false;
         try {
-            LOG.info("executeQuery on {0}, query: {1}, options: {2}", objectClass, query, options);
-            if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {
-                //find by Uid (user Primary Key)
-                if (query != null && query.byUid != null) {
-                    HttpGet request = new HttpGet(getConfiguration().getServiceAddress() + AFFILIATIONS + "/" + query.byUid);
-                    JSONObject affiliation = callRequest(request, true);
-                    if (affiliation == null) {
-                        throw new UnknownUidException("Affiliation with ID " + query.byUid + " does not exist");
+            try {
+                LOG.info("executeQuery on {0}, query: {1}, options: {2}", objectClass, query, options);
+                if (objectClass.is(AFFILIATION_OBJECT_CLASS)) {
+                    EduIdProjection projection = EduIdProjection.of(options);
+                    //find by Uid (user Primary Key)
+                    if (query != null && query.byUid != null) {
+                        ConnectorObject connectorObject = readAffiliation(query.byUid, projection);
+                        if (connectorObject == null) {
+                            throw new UnknownUidException("Affiliation with ID " + query.byUid + " does not exist");
+                        }
+                        handler.handle(connectorObject);
+                    } else if (query != null && query.byUids != null) {
+                        readAffiliations(query.byUids, handler, projection);
+                    } else {
+                        listAffiliations(query == null ? null : query.scimFilter, handler, options, projection);
                     }
-                    ConnectorObject connectorObject = convertAffiliationToConnectorObject(affiliation);
-                    handler.handle(connectorObject);
+
                 } else {
-                    throw new UnsupportedOperationException("Unsupported listing operation in SCIM API, options: " + options);
+                    // not found
+                    throw new UnsupportedOperationException("Unsupported object class " + objectClass);
                 }
+            } catch (IOException e) {
+                throw new ConnectorIOException(e.getMessage(), e);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
+        }
+    }
 
-            } else {
-                // not found
-                throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+    /**
+     * Reads affiliations concurrently, at most searchParallelism requests at once. Results are passed
+     * to the handler in the calling thread as soon as they are read, affiliations which don't exist are skipped.
+     */
+    private void readAffiliations(Collection<String> uids, ResultsHandler handler, EduIdProjection projection) throws IOException {
+        if (transport.isAsync()) {
+            readAffiliationsAsync(uids, handler, projection);
+            return;
+        }
+        CompletionService<ConnectorObject> completionService = new ExecutorCompletionService<>(FETCH_EXECUTOR);
+        Iterator<String> pending = uids.iterator();
+        List<Future<ConnectorObject>> running = new ArrayList<>();
+        try {
+            while (running.size() < getConfiguration().getSearchParallelism() && pending.hasNext()) {
+                running.add(completionService.submit(readAffiliationTask(pending.next(), projection)));
+            }
+            while (!running.isEmpty()) {
+                Future<ConnectorObject> done = completionService.take();
+                running.remove(done);
+                if (pending.hasNext()) {
+                    running.add(completionService.submit(readAffiliationTask(pending.next(), projection)));
+                }
+                ConnectorObject connectorObject = done.get();
+                if (connectorObject != null && !handler.handle(connectorObject)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while reading affiliations " + uids, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorIOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            for (Future<ConnectorObject> future : running) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #readAffiliations(Collection, ResultsHandler, EduIdProjection)}, but the requests are kept in flight
+     * by the asynchronous transport instead of fetch threads. Responses are read in the calling thread in the order
+     * of the UIDs, retries are sent as blocking requests.
+     */
+    private void readAffiliationsAsync(Collection<String> uids, ResultsHandler handler, EduIdProjection projection) throws IOException {
+        Iterator<String> pending = uids.iterator();
+        Deque<PendingRead> running = new ArrayDeque<>();
+        try {
+            while (true) {
+                while (running.size() < getConfiguration().getSearchParallelism() && pending.hasNext()) {
+                    running.add(new PendingRead(pending.next(), projection));
+                }
+                PendingRead read = running.poll();
+                if (read == null) {
+                    return;
+                }
+                ConnectorObject connectorObject = read.get();
+                if (connectorObject != null && !handler.handle(connectorObject)) {
+                    return;
+                }
+            }
+        } finally {
+            for (PendingRead read : running) {
+                read.cancel();
             }
-        } catch (IOException e) {
-            throw new ConnectorIOException(e.getMessage(), e);
         }
     }
 
-    private ConnectorObject convertAffiliationToConnectorObject(JSONObject affiliation) throws IOException {
-        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
-        ObjectClass objectClass = new ObjectClass(AFFILIATION_OBJECT_CLASS);
-        builder.setObjectClass(objectClass);
+    /**
+     * Affiliation from the cache, or its GET request sent by the asynchronous transport.
+     */
+    private final class PendingRead {
 
-        String uid = affiliation.getString(UID);
-        builder.setUid(new Uid(uid));
-        builder.setName(uid);
+        private final String uid;
+        private final EduIdProjection projection;
+        private final ConnectorObject cached;
+        private final HttpGet request;
+        private final Future<HttpResponse> response;
+        private final long sentNanos;
+        private final long readStarted;
 
-        for (String attribute : SINGLE_STRING_ATTRIBUTES){
-            getStringIfExists(affiliation, attribute, builder);
-        }
-        for (String attribute : SINGLE_INT_ATTRIBUTES){
-            getIntIfExists(affiliation, attribute, builder);
+        private PendingRead(String uid, EduIdProjection projection) {
+            this.uid = uid;
+            this.projection = projection;
+            this.readStarted = startRead();
+            this.cached = cachedAffiliation(uid, projection);
+            this.request = cached == null ? affiliationRequest(uid, projection) : null;
+            this.response = request == null ? null : sendAsyncRequest(request);
+            this.sentNanos = System.nanoTime();
         }
-        for (String attribute : MULTI_STRING_ATTRIBUTES){
-            getMultiStringIfExists(affiliation, attribute, builder);
+
+        /**
+         * @return null when the affiliation doesn't exist
+         */
+        private ConnectorObject get() throws IOException {
+            if (cached != null) {
+                return cached;
+            }
+            try {
+                ConnectorObject connectorObject = readAffiliationResponse(sendPreparedRequest(request, response, sentNanos, true), projection);
+                cacheAffiliation(connectorObject, projection, readStarted);
+                return connectorObject;
+            } catch (UnknownUidException e) {
+                LOG.ok("affiliation {0} does not exist", uid);
+                return null;
+            }
         }
-        for (String attribute : MULTI_INT_ATTRIBUTES){
-            getMultiIntIfExists(affiliation, attribute, builder);
+
+        private void cancel() {
+            if (response != null) {
+                response.cancel(true);
+            }
         }
+    }
 
-        ConnectorObject connectorObject = builder.build();
-        LOG.ok("convertAffiliationToConnectorObject, affiliation: {0}, \n\tconnectorObject: {1}",
-                uid, connectorObject);
-        return connectorObject;
+    private Callable<ConnectorObject> readAffiliationTask(final String uid, final EduIdProjection projection) {
+        return new Callable<ConnectorObject>() {
+            @Override
+            public ConnectorObject call() throws IOException {
+                try {
+                    return readAffiliation(uid, projection);
+                } catch (UnknownUidException e) {
+                    LOG.ok("affiliation {0} does not exist", uid);
+                    return null;
+                }
+            }
+        };
     }
 
-    private void getStringIfExists(JSONObject object, String attrName, ConnectorObjectBuilder builder) {
-        if (object.has(attrName)) {
-            if (object.get(attrName) != null && !JSONObject.NULL.equals(object.get(attrName))) {
-                addAttr(builder, attrName, object.getString(attrName));
+    /**
+     * @param scimFilter SCIM filter expression evaluated by the server, null for all affiliations
+     */
+    private void listAffiliations(String scimFilter, ResultsHandler handler, OperationOptions options, EduIdProjection projection) throws IOException {
+        Integer pageSize = options == null ? null : options.getPageSize();
+        Integer pagedResultsOffset = options == null ? null : options.getPagedResultsOffset();
+        // caller asked for one page only, otherwise walk all pages
+        boolean singlePage = pageSize != null && pageSize > 0;
+        int count = singlePage ? pageSize : getConfiguration().getPageSize();
+        // both SCIM startIndex and pagedResultsOffset are 1-based
+        int startIndex = pagedResultsOffset != null && pagedResultsOffset > 0 ? pagedResultsOffset : 1;
+
+        while (true) {
+            HttpGet request = new HttpGet(EduIdProjection.appendTo(getConfiguration().getServiceAddress() + AFFILIATIONS
+                    + "?" + START_INDEX + "=" + startIndex + "&" + COUNT + "=" + count
+                    + (scimFilter == null ? "" : "&" + FILTER + "=" + urlEncode(scimFilter)), projection));
+            EduIdJsonDecoder.ListPage page = callListRequest(request, handler, new EduIdJsonDecoder.ListPage(), projection);
+            if (page == null) {
+                handleSearchResult(handler, 0, startIndex);
+                return;
+            }
+            LOG.ok("listAffiliations, startIndex: {0}, count: {1}, returned: {2}, totalResults: {3}", startIndex, count, page.returned, page.totalResults);
+            startIndex += page.returned;
+            if (page.stopped) {
+                LOG.ok("listAffiliations stopped by handler at startIndex {0}", startIndex);
+                handleSearchResult(handler, page.totalResults, startIndex);
+                return;
+            }
+            // server can return less than requested count, next page starts after the last returned object
+            if (singlePage || page.returned == 0 || (page.totalResults >= 0 && startIndex > page.totalResults)) {
+                handleSearchResult(handler, page.totalResults, startIndex);
+                return;
             }
         }
     }
 
-    private void getIntIfExists(JSONObject object, String attrName, ConnectorObjectBuilder builder) {
-        if (object.has(attrName)) {
-            if (object.get(attrName) != null && !JSONObject.NULL.equals(object.get(attrName))) {
-                addAttr(builder, attrName, object.getInt(attrName));
-            }
+    private void handleSearchResult(ResultsHandler handler, int totalResults, int nextIndex) {
+        if (handler instanceof SearchResultsHandler) {
+            // totalResults can follow Resources in the response and is unknown (-1) when the handler stopped before it
+            int remainingPagedResults = totalResults < 0 ? -1 : Math.max(0, totalResults - nextIndex + 1);
+            ((SearchResultsHandler) handler).handleResult(new SearchResult(null, remainingPagedResults));
         }
     }
 
-    private void getMultiStringIfExists(JSONObject object, String attrName, ConnectorObjectBuilder builder) {
-        if (object.has(attrName)) {
-            Object valueObject = object.get(attrName);
-            if (object.get(attrName) != null && !JSONObject.NULL.equals(valueObject)) {
-                List<String> values = new ArrayList<>();
-                if (valueObject instanceof JSONArray) {
-                    JSONArray objectArray = object.getJSONArray(attrName);
-                    for (int i = 0; i < objectArray.length(); i++) {
-                        values.add(objectArray.getString(i));
+    /**
+     * Changes since the token, oldest first. The token is meta.lastModified of the last synchronized affiliation.
+     * Affiliations modified exactly at the token are returned again, several affiliations can share one lastModified
+     * and the previous sync could stop between them. Redelivered changes are harmless, they are CREATE_OR_UPDATE.
+     * Pages are read the same way, each from the lastModified read last, skipping affiliations already delivered.
+     *
+     * SCIM doesn't keep deleted resources, so deletes are not reported here and are found by reconciliation.
+     */
+    @Override
+    public void sync(ObjectClass objectClass, SyncToken token, final SyncResultsHandler handler, OperationOptions options) {
+        long start = startOperation(EduIdMetrics.SYNC);
+        boolean failed = false;
+        try {
+            if (!objectClass.is(AFFILIATION_OBJECT_CLASS)) {
+                // not found
+                throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+            }
+            LOG.info("sync on {0}, token: {1}", objectClass, token);
+            final String since = token == null ? null : String.valueOf(token.getValue());
+            final EduIdProjection projection = EduIdProjection.of(options);
+            String sort = "&" + SORT_BY + "=" + META + "." + LAST_MODIFIED + "&" + SORT_ORDER + "=ascending";
+            try {
+                // keyset paging: every page starts at the lastModified read last, startIndex would skip rows
+                // when an affiliation is modified during the sync and moves to the end of the sort order
+                final String[] cursor = {since};
+                // affiliations delivered at the cursor, they are returned again by the next page
+                final Set<String> atCursor = new HashSet<>();
+                int pageSize = getConfiguration().getPageSize();
+                while (true) {
+                    String query = sort;
+                    if (cursor[0] != null) {
+                        query += "&" + FILTER + "=" + urlEncode(META + "." + LAST_MODIFIED + " ge " + EduIdFilterTranslator.scimValue(cursor[0]));
+                    }
+                    // room for pageSize new affiliations even when all delivered ones share the cursor
+                    int count = pageSize + atCursor.size();
+                    HttpGet request = new HttpGet(EduIdProjection.appendTo(getConfiguration().getServiceAddress() + AFFILIATIONS
+                            + "?" + START_INDEX + "=1&" + COUNT + "=" + count + query, projection));
+                    final EduIdJsonDecoder.ListPage page = new EduIdJsonDecoder.ListPage();
+                    final long readStarted = startRead();
+                    final int[] delivered = {0};
+                    EduIdJsonDecoder.ListPage result = callListRequest(request, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject connectorObject) {
+                            String uid = connectorObject.getUid().getUidValue();
+                            boolean sameTime = page.lastModified == null || page.lastModified.equals(cursor[0]);
+                            if (sameTime && atCursor.contains(uid)) {
+                                return true;
+                            }
+                            if (!sameTime) {
+                                cursor[0] = page.lastModified;
+                                atCursor.clear();
+                            }
+                            atCursor.add(uid);
+                            delivered[0]++;
+                            cacheAffiliation(connectorObject, projection, readStarted);
+                            SyncDeltaBuilder builder = new SyncDeltaBuilder();
+                            builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+                            builder.setObjectClass(connectorObject.getObjectClass());
+                            builder.setUid(connectorObject.getUid());
+                            builder.setObject(connectorObject);
+                            builder.setToken(new SyncToken(cursor[0] != null ? cursor[0] : since));
+                            return handler.handle(builder.build());
+                        }
+                    }, page, projection);
+                    if (result == null || result.stopped || result.returned == 0) {
+                        return;
+                    }
+                    LOG.ok("sync, since: {0}, count: {1}, returned: {2}, delivered: {3}, totalResults: {4}",
+                            cursor[0], count, result.returned, delivered[0], result.totalResults);
+                    // server can return less than count, e.g. up to its maxResults
+                    boolean lastPage = result.totalResults >= 0 ? result.returned >= result.totalResults : result.returned < count;
+                    if (lastPage || delivered[0] == 0) {
+                        return;
                     }
-                    builder.addAttribute(attrName, values.toArray());
-                } else if (valueObject instanceof String) {
-                    addAttr(builder, attrName, object.getString(attrName));
-                } else {
-                    throw new InvalidAttributeValueException("Unsupported value '" + valueObject + "' for attribute name '" + attrName + "' from " + object);
                 }
+            } catch (IOException e) {
+                throw new ConnectorIOException(e.getMessage(), e);
             }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
         }
     }
 
-    private void getMultiIntIfExists(JSONObject object, String attrName, ConnectorObjectBuilder builder) {
-        if (object.has(attrName)) {
-            Object valueObject = object.get(attrName);
-            if (object.get(attrName) != null && !JSONObject.NULL.equals(valueObject)) {
-                List<Integer> values = new ArrayList<>();
-                if (valueObject instanceof JSONArray) {
-                    JSONArray objectArray = object.getJSONArray(attrName);
-                    for (int i = 0; i < objectArray.length(); i++) {
-                        values.add(objectArray.getInt(i));
-                    }
-                    builder.addAttribute(attrName, values.toArray());
-                } else if (valueObject instanceof String) {
-                    addAttr(builder, attrName, object.getString(attrName));
-                } else {
-                    throw new InvalidAttributeValueException("Unsupported value '" + valueObject + "' for attribute name '" + attrName + "' from " + object);
+    /**
+     * Server time (Date header) of an empty listing, falls back to local time. Date has second precision
+     * and sync returns changes modified at the token too, so changes made in the same second are not missed.
+     */
+    @Override
+    public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+        long start = startOperation(EduIdMetrics.SYNC);
+        boolean failed = false;
+        try {
+            if (!objectClass.is(AFFILIATION_OBJECT_CLASS)) {
+                // not found
+                throw new UnsupportedOperationException("Unsupported object class " + objectClass);
+            }
+            Date now = null;
+            HttpGet request = new HttpGet(getConfiguration().getServiceAddress() + AFFILIATIONS + "?" + COUNT + "=0");
+            CloseableHttpResponse response = sendRequest(request);
+            try {
+                Header date = response.getFirstHeader(HttpHeaders.DATE);
+                if (date != null) {
+                    now = DateUtils.parseDate(date.getValue());
                 }
+            } finally {
+                closeResponse(response);
+            }
+            if (now == null) {
+                now = new Date();
             }
+            SyncToken token = new SyncToken(DateTimeFormatter.ISO_INSTANT.format(now.toInstant()));
+            LOG.ok("getLatestSyncToken, token: {0}", token);
+            return token;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            endOperation(start, failed);
         }
     }
 }
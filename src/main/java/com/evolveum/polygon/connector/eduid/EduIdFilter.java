@@ -15,16 +15,46 @@
  */
 package com.evolveum.polygon.connector.eduid;
 
+import java.util.Set;
+
 /**
  * Created by oscar on 25. 3. 2019.
  */
 public class EduIdFilter {
     public String byUid;
+    // OR of Uid equality filters
+    public Set<String> byUids;
+    // SCIM filter expression evaluated by the server
+    public String scimFilter;
+
+    /**
+     * @return this filter as SCIM filter expression
+     */
+    public String toScimFilter() {
+        if (scimFilter != null) {
+            return scimFilter;
+        }
+        if (byUid != null) {
+            return EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID + " eq " + EduIdFilterTranslator.scimValue(byUid);
+        }
+        StringBuilder sb = new StringBuilder();
+        if (byUids != null) {
+            for (String uid : byUids) {
+                if (sb.length() > 0) {
+                    sb.append(" or ");
+                }
+                sb.append(EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID).append(" eq ").append(EduIdFilterTranslator.scimValue(uid));
+            }
+        }
+        return sb.toString();
+    }
 
     @Override
     public String toString() {
         return "EduIdFilter{" +
-                ", byUid=" + byUid +
+                "byUid=" + byUid +
+                ", byUids=" + byUids +
+                ", scimFilter=" + scimFilter +
                 '}';
     }
 }
@@ -19,11 +19,16 @@ import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.Uid;
-import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
-import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.*;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Created by oscar on 25. 3. 2019.
+ *
+ * Equality on Uid/Name (and OR of them) is read directly by Uid, other supported filters are
+ * sent to the server as SCIM filter expression.
  */
 public class EduIdFilterTranslator extends AbstractFilterTranslator<EduIdFilter> {
     private static final Log LOG = Log.getLog(EduIdFilterTranslator.class);
@@ -32,13 +37,9 @@ public class EduIdFilterTranslator extends AbstractFilterTranslator<EduIdFilter>
     protected EduIdFilter createEqualsExpression(EqualsFilter filter, boolean not) {
         LOG.ok("createEqualsExpression, filter: {0}, not: {1}", filter, not);
 
-        if (not) {
-            return null;            // not supported
-        }
-
         Attribute attr = filter.getAttribute();
         LOG.ok("attr.getName:  {0}, attr.getValue: {1}", attr.getName(), attr.getValue());
-        if (Uid.NAME.equals(attr.getName()) || Name.NAME.equals(attr.getName())) {
+        if (!not && (Uid.NAME.equals(attr.getName()) || Name.NAME.equals(attr.getName()))) {
             if (attr.getValue() != null && attr.getValue().get(0) != null) {
                 EduIdFilter eduIdFilter = new EduIdFilter();
                 eduIdFilter.byUid = String.valueOf(attr.getValue().get(0));
@@ -46,6 +47,121 @@ public class EduIdFilterTranslator extends AbstractFilterTranslator<EduIdFilter>
                 return eduIdFilter;
             }
         }
-        return null;            // not supported
+        return createScimExpression(filter, "eq", not);
+    }
+
+    @Override
+    protected EduIdFilter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        return createScimExpression(filter, "sw", not);
+    }
+
+    @Override
+    protected EduIdFilter createEndsWithExpression(EndsWithFilter filter, boolean not) {
+        return createScimExpression(filter, "ew", not);
+    }
+
+    @Override
+    protected EduIdFilter createContainsExpression(ContainsFilter filter, boolean not) {
+        return createScimExpression(filter, "co", not);
+    }
+
+    @Override
+    protected EduIdFilter createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+        return createScimExpression(filter, "gt", not);
+    }
+
+    @Override
+    protected EduIdFilter createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter, boolean not) {
+        return createScimExpression(filter, "ge", not);
+    }
+
+    @Override
+    protected EduIdFilter createLessThanExpression(LessThanFilter filter, boolean not) {
+        return createScimExpression(filter, "lt", not);
+    }
+
+    @Override
+    protected EduIdFilter createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+        return createScimExpression(filter, "le", not);
+    }
+
+    @Override
+    protected EduIdFilter createAndExpression(EduIdFilter leftExpression, EduIdFilter rightExpression) {
+        LOG.ok("createAndExpression, leftExpression: {0}, rightExpression: {1}", leftExpression, rightExpression);
+        return scimFilter("(" + leftExpression.toScimFilter() + ") and (" + rightExpression.toScimFilter() + ")");
+    }
+
+    @Override
+    protected EduIdFilter createOrExpression(EduIdFilter leftExpression, EduIdFilter rightExpression) {
+        LOG.ok("createOrExpression, leftExpression: {0}, rightExpression: {1}", leftExpression, rightExpression);
+
+        // OR of Uid equality filters, e.g. midPoint correlating a batch of accounts, is read by Uid
+        Set<String> uids = new LinkedHashSet<>();
+        if (addUids(uids, leftExpression) && addUids(uids, rightExpression)) {
+            EduIdFilter eduIdFilter = new EduIdFilter();
+            eduIdFilter.byUids = uids;
+            LOG.ok("EduIdFilter: {0}", eduIdFilter);
+            return eduIdFilter;
+        }
+        return scimFilter("(" + leftExpression.toScimFilter() + ") or (" + rightExpression.toScimFilter() + ")");
+    }
+
+    private boolean addUids(Set<String> uids, EduIdFilter expression) {
+        if (expression.byUid != null) {
+            uids.add(expression.byUid);
+            return true;
+        }
+        if (expression.byUids != null) {
+            uids.addAll(expression.byUids);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * SCIM attribute operator value expression, e.g. swissEduID eq "123", null when not supported.
+     */
+    private EduIdFilter createScimExpression(AttributeFilter filter, String operator, boolean not) {
+        LOG.ok("createScimExpression, filter: {0}, operator: {1}, not: {2}", filter, operator, not);
+
+        Attribute attr = filter.getAttribute();
+        String attrName = attr.getName();
+        if (Uid.NAME.equals(attrName) || Name.NAME.equals(attrName)) {
+            attrName = EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID;
+        }
+        if (EduIdAttribute.get(attrName) == null || attr.getValue() == null || attr.getValue().size() != 1
+                || attr.getValue().get(0) == null) {
+            return null;            // not supported
+        }
+        Object value = attr.getValue().get(0);
+
+        String expression = attrName + " " + operator + " " + scimValue(value);
+        return scimFilter(not ? "not (" + expression + ")" : expression);
+    }
+
+    private EduIdFilter scimFilter(String expression) {
+        EduIdFilter eduIdFilter = new EduIdFilter();
+        eduIdFilter.scimFilter = expression;
+        LOG.ok("EduIdFilter: {0}", eduIdFilter);
+        return eduIdFilter;
+    }
+
+    /**
+     * Numbers and booleans as they are, everything else as JSON string.
+     */
+    static String scimValue(Object value) {
+        if (value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        String string = String.valueOf(value);
+        StringBuilder sb = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
     }
 }
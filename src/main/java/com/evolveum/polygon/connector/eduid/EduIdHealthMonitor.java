@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness of one endpoint, shared by all connector instances.
+ *
+ * Every request reports its final outcome after its retries: any HTTP response below 500 means the endpoint
+ * is alive, I/O errors and 5xx responses are failures. After circuitBreakerThreshold consecutive failures
+ * the circuit opens and requests fail fast for circuitBreakerReset. Then one request is let through,
+ * its failure opens the circuit again, its success closes it.
+ */
+public class EduIdHealthMonitor {
+
+    private static final Log LOG = Log.getLog(EduIdHealthMonitor.class);
+
+    private static final ConcurrentMap<String, EduIdHealthMonitor> MONITORS = new ConcurrentHashMap<>();
+
+    private final long aliveTtlNanos;
+    private final int threshold;
+    private final long resetNanos;
+
+    private long lastSuccess;
+    private boolean succeeded;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean open;
+
+    private EduIdHealthMonitor(long aliveTtlMillis, int threshold, long resetMillis) {
+        this.aliveTtlNanos = TimeUnit.MILLISECONDS.toNanos(aliveTtlMillis);
+        this.threshold = threshold;
+        this.resetNanos = TimeUnit.MILLISECONDS.toNanos(resetMillis);
+    }
+
+    public static EduIdHealthMonitor forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + configuration.getAliveTtl() + "|" + configuration.getCircuitBreakerThreshold()
+                + "|" + configuration.getCircuitBreakerReset();
+        EduIdHealthMonitor monitor = MONITORS.get(key);
+        if (monitor == null) {
+            MONITORS.putIfAbsent(key, new EduIdHealthMonitor(configuration.getAliveTtl(),
+                    configuration.getCircuitBreakerThreshold(), configuration.getCircuitBreakerReset()));
+            monitor = MONITORS.get(key);
+        }
+        return monitor;
+    }
+
+    /**
+     * @throws ConnectionFailedException while the circuit is open
+     */
+    public synchronized void checkClosed() {
+        if (!open) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (openUntil - now > 0) {
+            throw new ConnectionFailedException("Endpoint is unavailable after " + consecutiveFailures
+                    + " consecutive failures, next attempt in " + TimeUnit.NANOSECONDS.toMillis(openUntil - now) + " ms");
+        }
+        // half-open, this request is the trial and other requests still fail fast
+        openUntil = now + resetNanos;
+    }
+
+    /**
+     * @return true when a request succeeded within aliveTtl
+     */
+    public synchronized boolean isAlive() {
+        return succeeded && System.nanoTime() - lastSuccess < aliveTtlNanos;
+    }
+
+    public synchronized void recordSuccess() {
+        lastSuccess = System.nanoTime();
+        succeeded = true;
+        consecutiveFailures = 0;
+        if (open) {
+            LOG.info("Endpoint is available again, closing circuit");
+            open = false;
+        }
+    }
+
+    public synchronized void recordFailure() {
+        succeeded = false;
+        consecutiveFailures++;
+        if (threshold > 0 && consecutiveFailures >= threshold) {
+            if (!open) {
+                LOG.warn("Endpoint failed {0} times in a row, opening circuit for {1} ms", consecutiveFailures,
+                        TimeUnit.NANOSECONDS.toMillis(resetNanos));
+            }
+            open = true;
+            openUntil = System.nanoTime() + resetNanos;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EduIdHealthMonitor{" +
+                "alive=" + isAlive() +
+                ", consecutiveFailures=" + consecutiveFailures +
+                ", open=" + open +
+                '}';
+    }
+}
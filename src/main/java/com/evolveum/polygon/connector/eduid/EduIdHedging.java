@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged reads by UID: when the response doesn't arrive within hedgeDelay, the same request is sent once more
+ * and the first response is used. The other request is aborted, its response is closed when it comes anyway.
+ * Other GET requests are not hedged, a second page, sync or ServiceProviderConfig request only adds load.
+ *
+ * At most hedgeBudget percent of reads are hedged, so a slow server doesn't get twice the load.
+ * A failed request waits for the other one, the error is thrown only when both failed.
+ * The budget is shared by all connector instances with the same endpoint, user and hedging settings.
+ */
+public class EduIdHedging {
+
+    private static final Log LOG = Log.getLog(EduIdHedging.class);
+
+    private static final ConcurrentMap<String, EduIdHedging> HEDGINGS = new ConcurrentHashMap<>();
+
+    // sends blocking requests, so the calling thread can wait for whichever response comes first
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "eduid-hedge-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long delayNanos;
+    private final int budgetPercent;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    private EduIdHedging(long delayMillis, int budgetPercent) {
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.budgetPercent = budgetPercent;
+    }
+
+    public static EduIdHedging forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + configuration.getHedgeDelay() + "|" + configuration.getHedgeBudget();
+        EduIdHedging hedging = HEDGINGS.get(key);
+        if (hedging == null) {
+            HEDGINGS.putIfAbsent(key, new EduIdHedging(configuration.getHedgeDelay(), configuration.getHedgeBudget()));
+            hedging = HEDGINGS.get(key);
+        }
+        return hedging;
+    }
+
+    /**
+     * Executes the prepared GET request, hedged when it is slow and the budget allows it.
+     *
+     * @param metrics metrics of the running operation, may be null
+     */
+    public CloseableHttpResponse execute(EduIdHttpTransport transport, HttpRequestBase request, EduIdOperationMetrics metrics) {
+        requests.incrementAndGet();
+        BlockingQueue<Exchange> completed = new LinkedBlockingQueue<>();
+        // the caller retries with its request, so even the primary is sent as a copy which can be aborted
+        Exchange primary = new Exchange(transport, copy(request), completed);
+        Exchange hedge = null;
+        try {
+            Exchange first = completed.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (first == null) {
+                if (!reserveHedge()) {
+                    if (metrics != null) {
+                        metrics.recordHedgeOverBudget();
+                    }
+                    return completed.take().resolve().take();
+                }
+                LOG.ok("no response in {0} ms, hedging {1} {2}", TimeUnit.NANOSECONDS.toMillis(delayNanos), request.getMethod(), request.getURI());
+                hedge = new Exchange(transport, copy(request), completed);
+                if (metrics != null) {
+                    metrics.recordHedge();
+                }
+                first = completed.take();
+            }
+            first.resolve();
+            Exchange other = first == primary ? hedge : primary;
+            if (first.error != null && other != null) {
+                // the other request may still succeed
+                LOG.ok("{0} {1} failed, waiting for the other request: {2}", request.getMethod(), request.getURI(), first.error.getMessage());
+                first = completed.take().resolve();
+                other = first == primary ? hedge : primary;
+            }
+            if (first == hedge && first.error == null && metrics != null) {
+                metrics.recordHedgeWin();
+            }
+            CloseableHttpResponse response = first.take();
+            if (other != null) {
+                other.cancel();
+            }
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while executing request " + request.getMethod() + " " + request.getURI(), e);
+        } finally {
+            // no-op for the exchange which was taken
+            primary.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    /**
+     * Counts the hedge when it fits into the budget.
+     */
+    private boolean reserveHedge() {
+        while (true) {
+            long sent = hedges.get();
+            if ((sent + 1) * 100 > budgetPercent * requests.get()) {
+                return false;
+            }
+            if (hedges.compareAndSet(sent, sent + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Same request with the prepared headers, each request needs its own connection and abort state,
+     * an aborted request can't be executed again.
+     */
+    private static HttpRequestBase copy(HttpRequestBase request) {
+        HttpGet copy = new HttpGet(request.getURI());
+        copy.setHeaders(request.getAllHeaders());
+        copy.setConfig(request.getConfig());
+        return copy;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * One of the requests, its result is offered to the queue when it completes.
+     */
+    private static final class Exchange {
+
+        private final EduIdHttpTransport transport;
+        private final HttpRequestBase request;
+        private final Future<?> future;
+        private Future<HttpResponse> asyncResponse;
+        private CloseableHttpResponse response;
+        private RuntimeException error;
+        // guarded by this, a response of a cancelled exchange is closed by whoever comes last
+        private boolean taken;
+        private boolean cancelled;
+
+        private Exchange(final EduIdHttpTransport transport, final HttpRequestBase request, final BlockingQueue<Exchange> completed) {
+            this.transport = transport;
+            this.request = request;
+            if (transport.isAsync()) {
+                future = asyncResponse = transport.executeAsync(request, new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse result) {
+                        completed.add(Exchange.this);
+                    }
+
+                    @Override
+                    public void failed(Exception ex) {
+                        completed.add(Exchange.this);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        completed.add(Exchange.this);
+                    }
+                });
+            } else {
+                future = EXECUTOR.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            complete(transport.execute(request), null);
+                        } catch (RuntimeException e) {
+                            complete(null, e);
+                        } finally {
+                            completed.add(Exchange.this);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void complete(CloseableHttpResponse response, RuntimeException error) {
+            boolean close;
+            synchronized (this) {
+                this.response = response;
+                this.error = error;
+                close = cancelled;
+            }
+            if (close) {
+                closeQuietly(response);
+            }
+        }
+
+        /**
+         * Converts the result of a completed asynchronous request, called when the exchange was taken from the queue.
+         */
+        private Exchange resolve() {
+            if (asyncResponse != null && response == null && error == null) {
+                // done, await only converts the response or the error
+                try {
+                    response = transport.await(asyncResponse, request);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return response of the resolved exchange, which is not closed by {@link #cancel()} anymore
+         */
+        private CloseableHttpResponse take() {
+            synchronized (this) {
+                taken = true;
+            }
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+
+        private void cancel() {
+            CloseableHttpResponse toClose;
+            synchronized (this) {
+                if (taken || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                toClose = response;
+            }
+            if (asyncResponse != null) {
+                asyncResponse.cancel(true);
+            } else {
+                // aborts the connection of the request in flight
+                request.abort();
+                future.cancel(false);
+            }
+            closeQuietly(toClose);
+        }
+
+        private static void closeQuietly(CloseableHttpResponse response) {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    LOG.ok("error when closing response of cancelled request: {0}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EduIdHedging{" +
+                "delay=" + TimeUnit.NANOSECONDS.toMillis(delayNanos) +
+                ", budget=" + budgetPercent +
+                "%, requests=" + requests +
+                ", hedges=" + hedges +
+                '}';
+    }
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.ssl.TrustStrategy;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * HTTP client with a connection pool, so connections and TLS sessions to the SCIM endpoint are reused
+ * between requests instead of being established for every request.
+ *
+ * Pool size, keep-alive, idle eviction, timeouts and response compression are taken from {@link EduIdConfiguration}.
+ * With httpAsync the requests are sent by a non-blocking NIO client: {@link #executeAsync(HttpUriRequest)} doesn't
+ * block and {@link #execute(HttpUriRequest)} only waits for the response, connections are served by httpAsyncIoThreads.
+ * The transport is thread safe.
+ *
+ * Limitation of httpAsync: the NIO client doesn't stream. Every response body is buffered before the response
+ * is returned, the decoder then reads it from memory; a body over maxResponseSize (counted as received, i.e.
+ * compressed) fails the request while it is being received. Request bodies are serialized into memory before
+ * they are sent. So list and sync pages hold up to a whole page in memory, it pays off for many small concurrent
+ * reads, e.g. the fan-out of OR-ed UIDs; with large pages keep httpAsync off or lower pageSize.
+ *
+ * Pooled connector instances with the same endpoint, user and HTTP settings share one transport, so they share
+ * connections and TLS sessions, see {@link #acquire(EduIdConfiguration)}. The password is not part of the key,
+ * the transport doesn't authenticate, the Authorization header is added to every request by the connector.
+ */
+public class EduIdHttpTransport {
+
+    private static final Log LOG = Log.getLog(EduIdHttpTransport.class);
+
+    private static final String GZIP = "gzip";
+
+    // closes idle connections of asynchronous transports, the blocking client has its own evictor
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "eduid-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // guarded by itself, reference counts are changed under the same lock
+    private static final Map<String, EduIdHttpTransport> TRANSPORTS = new HashMap<>();
+
+    private final String key;
+    private int references;
+
+    private final ConnPoolControl<HttpRoute> pool;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private final HttpRoute route;
+    private final int connectTimeout;
+    private final long keepAlive;
+    private final CloseableHttpClient httpClient;
+    private final CloseableHttpAsyncClient asyncClient;
+    private final ScheduledFuture<?> eviction;
+    private final boolean compression;
+    private final long maxResponseSize;
+
+    /**
+     * Transport shared by all connector instances with the same key, created by the first one.
+     * Every acquire must be followed by one {@link #release()}.
+     */
+    public static EduIdHttpTransport acquire(EduIdConfiguration configuration) {
+        String key = key(configuration);
+        synchronized (TRANSPORTS) {
+            EduIdHttpTransport transport = TRANSPORTS.get(key);
+            if (transport == null) {
+                transport = new EduIdHttpTransport(configuration, key);
+                TRANSPORTS.put(key, transport);
+            }
+            transport.references++;
+            LOG.ok("acquired HTTP transport {0}, references: {1}", key, transport.references);
+            return transport;
+        }
+    }
+
+    /**
+     * Closes the transport when the last connector instance released it.
+     */
+    public void release() {
+        synchronized (TRANSPORTS) {
+            if (references <= 0) {
+                LOG.warn("HTTP transport {0} released more times than acquired", key);
+                return;
+            }
+            references--;
+            LOG.ok("released HTTP transport {0}, references: {1}", key, references);
+            if (references > 0) {
+                return;
+            }
+            TRANSPORTS.remove(key);
+        }
+        close();
+    }
+
+    /**
+     * Everything the client is built from, TLS settings included.
+     */
+    private static String key(EduIdConfiguration configuration) {
+        return configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + configuration.getTrustAllCertificates()
+                + "|" + configuration.getHttpMaxConnections() + "|" + configuration.getHttpMaxConnectionsPerRoute()
+                + "|" + configuration.getHttpKeepAlive() + "|" + configuration.getHttpIdleTimeout()
+                + "|" + configuration.getHttpConnectTimeout() + "|" + configuration.getHttpSocketTimeout()
+                + "|" + configuration.getHttpCompression()
+                + "|" + configuration.getHttpAsync() + "|" + configuration.getHttpAsyncIoThreads()
+                + "|" + configuration.getMaxResponseSize();
+    }
+
+    private EduIdHttpTransport(EduIdConfiguration configuration, String key) {
+        this.key = key;
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(configuration.getHttpConnectTimeout())
+                .setConnectionRequestTimeout(configuration.getHttpConnectTimeout())
+                .setSocketTimeout(configuration.getHttpSocketTimeout())
+                .build();
+        compression = Boolean.TRUE.equals(configuration.getHttpCompression());
+        maxResponseSize = configuration.getMaxResponseSize();
+        route = route(configuration.getServiceAddress());
+        connectTimeout = configuration.getHttpConnectTimeout();
+        keepAlive = configuration.getHttpKeepAlive();
+
+        if (Boolean.TRUE.equals(configuration.getHttpAsync())) {
+            final PoolingNHttpClientConnectionManager asyncConnectionManager = asyncConnectionManager(configuration);
+            asyncConnectionManager.setMaxTotal(configuration.getHttpMaxConnections());
+            asyncConnectionManager.setDefaultMaxPerRoute(configuration.getHttpMaxConnectionsPerRoute());
+            pool = asyncConnectionManager;
+            this.asyncConnectionManager = asyncConnectionManager;
+            connectionManager = null;
+            httpClient = null;
+            asyncClient = HttpAsyncClients.custom()
+                    .setConnectionManager(asyncConnectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy(keepAliveStrategy(configuration.getHttpKeepAlive()))
+                    .build();
+            asyncClient.start();
+            final long idleTimeout = configuration.getHttpIdleTimeout();
+            eviction = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    asyncConnectionManager.closeExpiredConnections();
+                    asyncConnectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories(configuration));
+        connectionManager.setMaxTotal(configuration.getHttpMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(configuration.getHttpMaxConnectionsPerRoute());
+        pool = connectionManager;
+        asyncConnectionManager = null;
+        asyncClient = null;
+        eviction = null;
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(configuration.getHttpKeepAlive()))
+                .evictExpiredConnections()
+                .evictIdleConnections(configuration.getHttpIdleTimeout(), TimeUnit.MILLISECONDS);
+        if (!compression) {
+            // otherwise Accept-Encoding is sent and compressed responses are decompressed while they are read
+            builder.disableContentCompression();
+        }
+        httpClient = builder.build();
+    }
+
+    private static Registry<ConnectionSocketFactory> socketFactories(EduIdConfiguration configuration) {
+        SSLConnectionSocketFactory sslSocketFactory;
+        if (Boolean.TRUE.equals(configuration.getTrustAllCertificates())) {
+            sslSocketFactory = new SSLConnectionSocketFactory(trustAllContext(), NoopHostnameVerifier.INSTANCE);
+        } else {
+            sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+        }
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+    }
+
+    private static PoolingNHttpClientConnectionManager asyncConnectionManager(EduIdConfiguration configuration) {
+        SSLIOSessionStrategy sslStrategy;
+        if (Boolean.TRUE.equals(configuration.getTrustAllCertificates())) {
+            sslStrategy = new SSLIOSessionStrategy(trustAllContext(), NoopHostnameVerifier.INSTANCE);
+        } else {
+            sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+        }
+        Registry<SchemeIOSessionStrategy> strategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", sslStrategy)
+                .build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(configuration.getHttpAsyncIoThreads())
+                .setConnectTimeout(configuration.getHttpConnectTimeout())
+                .setSoTimeout(configuration.getHttpSocketTimeout())
+                .build();
+        try {
+            return new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig), strategies);
+        } catch (IOException e) {
+            throw new ConnectorIOException("Error when creating I/O reactor: " + e.getMessage(), e);
+        }
+    }
+
+    private static SSLContext trustAllContext() {
+        try {
+            return SSLContexts.custom().loadTrustMaterial(null, new TrustStrategy() {
+                @Override
+                public boolean isTrusted(X509Certificate[] chain, String authType) {
+                    return true;
+                }
+            }).build();
+        } catch (GeneralSecurityException e) {
+            throw new ConnectorIOException("Error when creating trust all SSL context: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Route of requests to the endpoint as the client plans it, with the default port of the scheme.
+     */
+    private static HttpRoute route(String serviceAddress) {
+        HttpHost host = URIUtils.extractHost(URI.create(serviceAddress));
+        if (host == null) {
+            return null;
+        }
+        try {
+            host = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+        } catch (UnsupportedSchemeException e) {
+            return null;
+        }
+        return new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+    }
+
+    /**
+     * Keep-alive announced by the server, but at most keepAliveMillis. Without announcement keepAliveMillis is used.
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(final long keepAliveMillis) {
+        return new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                if (duration < 0 || duration > keepAliveMillis) {
+                    return keepAliveMillis;
+                }
+                return duration;
+            }
+        };
+    }
+
+    /**
+     * Opens connections to the endpoint until the pool has count of them, connections which are already open
+     * are reused. Errors are only logged, the connector works without warm-up. Connector instances sharing
+     * the transport warm it up one after another, otherwise they could wait for each other's leased connections.
+     */
+    public synchronized void warmUp(int count) {
+        if (count <= 0 || route == null) {
+            return;
+        }
+        count = Math.min(count, pool.getMaxPerRoute(route));
+        long start = System.nanoTime();
+        int opened = 0;
+        try {
+            opened = asyncConnectionManager != null ? warmUpAsync(count) : warmUpBlocking(count);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            LOG.warn("Warm-up of connections to {0} failed: {1}", route, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Warm-up of connections to {0} interrupted", route);
+        }
+        LOG.ok("warm-up opened {0} of {1} connections to {2} in {3} ms, pool statistics: {4}", opened, count, route,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), pool.getStats(route));
+    }
+
+    /**
+     * All connections are leased at once, otherwise the pool would return the same connection again.
+     */
+    private int warmUpBlocking(int count) throws IOException, InterruptedException, ExecutionException {
+        List<HttpClientConnection> connections = new ArrayList<>();
+        int opened = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection connection = connectionManager.requestConnection(route, null).get(connectTimeout, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, connectTimeout, context);
+                    connectionManager.routeComplete(connection, route, context);
+                    opened++;
+                }
+            }
+        } finally {
+            for (HttpClientConnection connection : connections) {
+                // connection which failed to open is discarded by the pool
+                connectionManager.releaseConnection(connection, null, keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+        return opened;
+    }
+
+    private int warmUpAsync(int count) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        List<Future<NHttpClientConnection>> requests = new ArrayList<>();
+        List<NHttpClientConnection> connections = new ArrayList<>();
+        int opened = 0;
+        try {
+            // connected by the I/O reactor in parallel
+            for (int i = 0; i < count; i++) {
+                requests.add(asyncConnectionManager.requestConnection(route, null, connectTimeout, connectTimeout, TimeUnit.MILLISECONDS, null));
+            }
+            for (Future<NHttpClientConnection> request : requests) {
+                NHttpClientConnection connection = request.get(connectTimeout, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!asyncConnectionManager.isRouteComplete(connection)) {
+                    HttpClientContext context = HttpClientContext.create();
+                    asyncConnectionManager.startRoute(connection, route, context);
+                    asyncConnectionManager.routeComplete(connection, route, context);
+                    opened++;
+                }
+            }
+        } finally {
+            for (int i = connections.size(); i < requests.size(); i++) {
+                Future<NHttpClientConnection> request = requests.get(i);
+                if (!request.cancel(true) && request.isDone()) {
+                    // leased after all, must be returned
+                    try {
+                        connections.add(request.get());
+                    } catch (ExecutionException | CancellationException e) {
+                        // not leased
+                    }
+                }
+            }
+            for (NHttpClientConnection connection : connections) {
+                asyncConnectionManager.releaseConnection(connection, null, keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+        return opened;
+    }
+
+    public boolean isAsync() {
+        return asyncClient != null;
+    }
+
+    public CloseableHttpResponse execute(HttpUriRequest request) {
+        if (isAsync()) {
+            return await(executeAsync(request), request);
+        }
+        try {
+            return httpClient.execute(request);
+        } catch (IOException e) {
+            throw new ConnectorIOException("Error when executing request " + request.getMethod() + " " + request.getURI()
+                    + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends the request without waiting, only in asynchronous mode. The response body is buffered up to
+     * maxResponseSize, so the connection is released as soon as the response is received.
+     */
+    public Future<HttpResponse> executeAsync(HttpUriRequest request) {
+        return executeAsync(request, null);
+    }
+
+    /**
+     * @param callback notified in an I/O thread when the response is received, may be null
+     */
+    public Future<HttpResponse> executeAsync(HttpUriRequest request, FutureCallback<HttpResponse> callback) {
+        if (!isAsync()) {
+            throw new IllegalStateException("Asynchronous requests need httpAsync");
+        }
+        if (compression) {
+            // the asynchronous client has no content compression, see decompress()
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP);
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            bufferEntity((HttpEntityEnclosingRequest) request);
+        }
+        return asyncClient.execute(HttpAsyncMethods.create(request), new BoundedResponseConsumer(maxResponseSize), callback);
+    }
+
+    /**
+     * Streamed entities (JSON, gzip compressed) can only be written, the NIO client reads the content.
+     * The buffered entity is repeatable, retries send it as it is.
+     */
+    private void bufferEntity(HttpEntityEnclosingRequest request) {
+        HttpEntity entity = request.getEntity();
+        if (entity == null || entity.getContentLength() >= 0) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            entity.writeTo(out);
+        } catch (IOException e) {
+            throw new ConnectorIOException("Error when writing request body: " + e.getMessage(), e);
+        }
+        ByteArrayEntity buffered = new ByteArrayEntity(out.toByteArray());
+        buffered.setContentType(entity.getContentType());
+        buffered.setContentEncoding(entity.getContentEncoding());
+        request.setEntity(buffered);
+    }
+
+    /**
+     * Waits for the response of {@link #executeAsync(HttpUriRequest)}, I/O errors are thrown like by {@link #execute(HttpUriRequest)}.
+     */
+    public CloseableHttpResponse await(Future<HttpResponse> future, HttpUriRequest request) {
+        try {
+            return decompress(new AsyncResponse(future.get()));
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while executing request " + request.getMethod() + " " + request.getURI(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            throw new ConnectorIOException("Error when executing request " + request.getMethod() + " " + request.getURI()
+                    + ": " + cause.getMessage(), cause);
+        } catch (CancellationException e) {
+            throw new ConnectorIOException("Request " + request.getMethod() + " " + request.getURI() + " was cancelled", e);
+        }
+    }
+
+    private CloseableHttpResponse decompress(CloseableHttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        Header encoding = entity == null ? null : entity.getContentEncoding();
+        if (encoding != null && GZIP.equalsIgnoreCase(encoding.getValue())) {
+            response.setEntity(new GzipDecompressingEntity(entity));
+            response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+            response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+        }
+        return response;
+    }
+
+    /**
+     * Buffers the response like the default consumer of the asynchronous client, but fails the request as soon as
+     * the body exceeds maxResponseSize, before it fills the heap.
+     */
+    private static final class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+        private final long maxBytes;
+        private volatile HttpResponse response;
+        private volatile SimpleInputBuffer buffer;
+
+        private BoundedResponseConsumer(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            long length = entity.getContentLength();
+            if (length > maxBytes) {
+                throw new ContentTooLongException("Response body of " + length + " bytes exceeds maxResponseSize of " + maxBytes + " bytes");
+            }
+            buffer = new SimpleInputBuffer(length < 0 ? 4096 : (int) length, HeapByteBufferAllocator.INSTANCE);
+            response.setEntity(new ContentBufferEntity(entity, buffer));
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            buffer.consumeContent(decoder);
+            if (buffer.length() > maxBytes) {
+                throw new ContentTooLongException("Response body exceeds maxResponseSize of " + maxBytes + " bytes");
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            response = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Response of the asynchronous client, which is not closeable. The connection was already released,
+     * closing only discards the buffered body.
+     */
+    private static final class AsyncResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private AsyncResponse(HttpResponse response) {
+            super(response.getStatusLine());
+            setHeaders(response.getAllHeaders());
+            setEntity(response.getEntity());
+            setLocale(response.getLocale());
+        }
+
+        @Override
+        public void close() throws IOException {
+            EntityUtils.consume(getEntity());
+        }
+    }
+
+    /**
+     * @return leased, available and pending connections of the pool
+     */
+    public PoolStats getPoolStats() {
+        return pool.getTotalStats();
+    }
+
+    private void close() {
+        LOG.ok("closing HTTP transport {0}, pool statistics: {1}", key, getPoolStats());
+        if (eviction != null) {
+            eviction.cancel(false);
+        }
+        try {
+            if (asyncClient != null) {
+                asyncClient.close();
+            } else {
+                httpClient.close();
+            }
+        } catch (IOException e) {
+            LOG.warn(e, "Error when closing HTTP client: {0}", e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EduIdHttpTransport{" +
+                "async=" + isAsync() +
+                ", references=" + references +
+                ", pool=" + getPoolStats() +
+                '}';
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads SCIM responses token by token directly from the response stream. Affiliations are put
+ * straight into {@link ConnectorObjectBuilder}, without intermediate String or JSONObject tree.
+ *
+ * One decoder reads one response, it is not thread safe.
+ */
+public class EduIdJsonDecoder {
+
+    private static final Log LOG = Log.getLog(EduIdJsonDecoder.class);
+
+    private static final ObjectClass AFFILIATION = new ObjectClass(EduIdConnector.AFFILIATION_OBJECT_CLASS);
+
+    private final BoundedInputStream in;
+    private final JSONTokener tokener;
+    private final EduIdProjection projection;
+
+    private String lastModified;
+
+    public EduIdJsonDecoder(InputStream in, long maxBytes) {
+        this(in, maxBytes, null);
+    }
+
+    /**
+     * @param projection attributes which are converted, others are skipped, null for all attributes
+     */
+    public EduIdJsonDecoder(InputStream in, long maxBytes, EduIdProjection projection) {
+        this.in = new BoundedInputStream(in, maxBytes);
+        this.tokener = new JSONTokener(new InputStreamReader(this.in, StandardCharsets.UTF_8));
+        this.projection = projection;
+    }
+
+    /**
+     * Summary of one SCIM ListResponse page, totalResults is -1 when it was not read (yet).
+     */
+    public static class ListPage {
+        public int totalResults = -1;
+        public int returned;
+        public boolean stopped;
+        // meta.lastModified of the resource passed to the handler last
+        public String lastModified;
+    }
+
+    public JSONObject readObject() {
+        return new JSONObject(tokener);
+    }
+
+    public JSONArray readArray() {
+        return new JSONArray(tokener);
+    }
+
+    /**
+     * Reads SCIM ListResponse and passes every resource to the handler as soon as it is decoded.
+     * Stops reading when the handler returns false.
+     */
+    public ListPage readListResponse(ResultsHandler handler) {
+        return readListResponse(handler, new ListPage());
+    }
+
+    /**
+     * @param page updated while reading, e.g. handler can check lastModified of the current resource
+     */
+    public ListPage readListResponse(ResultsHandler handler, ListPage page) {
+        if (!startObject()) {
+            return page;
+        }
+        do {
+            String key = nextKey();
+            if (EduIdConnector.TOTAL_RESULTS.equals(key)) {
+                page.totalResults = toInt(key, tokener.nextValue());
+            } else if (EduIdConnector.RESOURCES.equals(key) && startArray()) {
+                do {
+                    ConnectorObject connectorObject = readAffiliation();
+                    page.returned++;
+                    page.lastModified = lastModified;
+                    if (!handler.handle(connectorObject)) {
+                        page.stopped = true;
+                        return page;
+                    }
+                } while (nextArrayElement());
+            } else {
+                tokener.nextValue();
+            }
+        } while (nextObjectMember());
+        return page;
+    }
+
+    /**
+     * Reads one affiliation JSON object, the stream must be positioned before its opening brace.
+     */
+    public ConnectorObject readAffiliation() {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(AFFILIATION);
+        String uid = null;
+        String version = null;
+        lastModified = null;
+
+        if (startObject()) {
+            do {
+                String key = nextKey();
+                if (EduIdConnector.META.equals(key)) {
+                    Object meta = tokener.nextValue();
+                    if (meta instanceof JSONObject) {
+                        version = ((JSONObject) meta).optString(EduIdConnector.VERSION, null);
+                        lastModified = ((JSONObject) meta).optString(EduIdConnector.LAST_MODIFIED, null);
+                    }
+                    continue;
+                }
+                EduIdAttribute attribute = EduIdAttribute.get(key);
+                if (attribute == null || (projection != null && !projection.contains(key))) {
+                    // unknown extensions, attributes not requested
+                    tokener.nextValue();
+                    continue;
+                }
+                if (attribute.isMultiValued()) {
+                    List<Object> values = readValues(attribute);
+                    if (values != null) {
+                        builder.addAttribute(key, values);
+                    }
+                    continue;
+                }
+                Object value = tokener.nextValue();
+                if (!JSONObject.NULL.equals(value)) {
+                    value = attribute.toValue(value);
+                    if (EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID.equals(key)) {
+                        uid = (String) value;
+                    }
+                    builder.addAttribute(key, value);
+                }
+            } while (nextObjectMember());
+        }
+
+        if (uid == null) {
+            throw new ConnectorIOException("Missing " + EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID + " in affiliation response");
+        }
+        // meta.version is the ETag of the affiliation
+        builder.setUid(new Uid(uid, version));
+        builder.setName(uid);
+
+        ConnectorObject connectorObject = builder.build();
+        // not the whole object, it can contain fschImapPW, use wireLogEnabled to see the response
+        LOG.ok("readAffiliation, affiliation: {0}, version: {1}", uid, version);
+        return connectorObject;
+    }
+
+    /**
+     * @return number of response body bytes read so far
+     */
+    public long getBytesRead() {
+        return in.getCount();
+    }
+
+    /**
+     * @return meta.lastModified of the affiliation read last, null when not returned
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Multi-valued attribute as array, single value or null (returns null).
+     */
+    private List<Object> readValues(EduIdAttribute attribute) {
+        char c = tokener.nextClean();
+        tokener.back();
+        if (c != '[') {
+            Object value = tokener.nextValue();
+            if (JSONObject.NULL.equals(value)) {
+                return null;
+            }
+            return Collections.singletonList(attribute.toValue(value));
+        }
+
+        List<Object> values = new ArrayList<>();
+        if (startArray()) {
+            do {
+                values.add(attribute.toValue(tokener.nextValue()));
+            } while (nextArrayElement());
+        }
+        return values;
+    }
+
+    private int toInt(String key, Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        throw new InvalidAttributeValueException("Unsupported value '" + value + "' for attribute name '" + key + "'");
+    }
+
+    /**
+     * Consumes '{', returns false for an empty object.
+     */
+    private boolean startObject() {
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+        if (tokener.nextClean() == '}') {
+            return false;
+        }
+        tokener.back();
+        return true;
+    }
+
+    /**
+     * Consumes '[', returns false for an empty array.
+     */
+    private boolean startArray() {
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            return false;
+        }
+        tokener.back();
+        return true;
+    }
+
+    private String nextKey() {
+        if (tokener.nextClean() != '"') {
+            throw tokener.syntaxError("Expected a quoted key");
+        }
+        String key = tokener.nextString('"');
+        if (tokener.nextClean() != ':') {
+            throw tokener.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    private boolean nextObjectMember() {
+        switch (tokener.nextClean()) {
+            case ',':
+                return true;
+            case '}':
+                return false;
+            default:
+                throw tokener.syntaxError("Expected a ',' or '}'");
+        }
+    }
+
+    private boolean nextArrayElement() {
+        switch (tokener.nextClean()) {
+            case ',':
+                return true;
+            case ']':
+                return false;
+            default:
+                throw tokener.syntaxError("Expected a ',' or ']'");
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Request body which serializes the JSON document straight into the connection output stream.
+ *
+ * Documents estimated under the buffer size are serialized once when the entity is created and sent with
+ * Content-Length, retries and the wire log reuse the bytes. Some gateways reject chunked POST and PUT.
+ *
+ * Larger documents have no intermediate String or byte array of the whole document: characters are UTF-8
+ * encoded into a small buffer which is reused by all writes of the thread. The entity is repeatable, every retry
+ * serializes the document again, so the document must not be changed after the entity is created.
+ * Length is unknown before writing, the body is sent chunked.
+ */
+public class EduIdJsonEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<Utf8Writer> WRITERS = new ThreadLocal<Utf8Writer>() {
+        @Override
+        protected Utf8Writer initialValue() {
+            return new Utf8Writer();
+        }
+    };
+
+    private final JSONObject document;
+    // serialized small document, null when it is streamed
+    private final byte[] bytes;
+    private volatile long writtenLength = -1;
+
+    public EduIdJsonEntity(JSONObject document, String contentType) {
+        this.document = document;
+        setContentType(contentType);
+        long estimatedSize = estimateSize(document);
+        if (estimatedSize < BUFFER_SIZE) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) estimatedSize + 16);
+            try {
+                serialize(out);
+            } catch (IOException e) {
+                // ByteArrayOutputStream doesn't throw
+                throw new IllegalStateException(e);
+            }
+            bytes = out.toByteArray();
+        } else {
+            bytes = null;
+            setChunked(true);
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return bytes != null ? bytes.length : -1;
+    }
+
+    /**
+     * Buffers the whole streamed document, only for diagnostics like the wire log.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (bytes != null) {
+            out.write(bytes);
+            out.flush();
+            writtenLength = bytes.length;
+            return;
+        }
+        writtenLength = serialize(out);
+    }
+
+    private long serialize(OutputStream out) throws IOException {
+        Utf8Writer writer = WRITERS.get();
+        if (writer.out != null) {
+            // nested write in the same thread, e.g. getContent() while writing
+            writer = new Utf8Writer();
+        }
+        writer.out = out;
+        try {
+            document.write(writer);
+            writer.flush();
+            return writer.written;
+        } catch (JSONException e) {
+            // JSONObject wraps IOException of the writer
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        } finally {
+            writer.reset();
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * @return the document which is sent, must not be changed
+     */
+    public JSONObject getDocument() {
+        return document;
+    }
+
+    /**
+     * @return bytes written by the last writeTo, -1 before the first one
+     */
+    public long getWrittenLength() {
+        return writtenLength;
+    }
+
+    /**
+     * Approximate serialized size in bytes without serializing, e.g. to decide about compression.
+     */
+    public static long estimateSize(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            long size = 2;
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                size += key.length() + 4 + estimateSize(object.opt(key));
+            }
+            return size;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            long size = 2;
+            for (int i = 0; i < array.length(); i++) {
+                size += estimateSize(array.opt(i)) + 1;
+            }
+            return size;
+        }
+        if (value instanceof String) {
+            return ((String) value).length() + 2;
+        }
+        return String.valueOf(value).length();
+    }
+
+    /**
+     * UTF-8 encoding writer with a reusable byte buffer, JSON escapes non-ASCII characters only when asked,
+     * so the full encoding including surrogate pairs is needed.
+     */
+    private static final class Utf8Writer extends Writer {
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private long written;
+        private OutputStream out;
+        private char highSurrogate;
+
+        @Override
+        public void write(int c) throws IOException {
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                encode(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                encode(str.charAt(i));
+            }
+        }
+
+        private void encode(char c) throws IOException {
+            if (position > BUFFER_SIZE - 4) {
+                flushBuffer();
+            }
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                // unpaired surrogate
+                buffer[position++] = '?';
+                if (position > BUFFER_SIZE - 4) {
+                    flushBuffer();
+                }
+            }
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                written += position;
+                position = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                buffer[position++] = '?';
+            }
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void reset() {
+            out = null;
+            position = 0;
+            written = 0;
+            highSurrogate = 0;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.common.logging.Log;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Metrics of all operations against one endpoint, shared by all connector instances.
+ *
+ * Every operation is registered as MBean com.evolveum.polygon.connector.eduid:type=EduIdMetrics,endpoint=..,user=..,operation=..
+ * Connectors with httpAsync have their own metrics with ,transport=async, so both transports can be compared side by side.
+ * With metricsLogInterval the summary of all operations is also logged periodically.
+ */
+public class EduIdMetrics {
+
+    private static final Log LOG = Log.getLog(EduIdMetrics.class);
+
+    public static final String CREATE = "create";
+    public static final String UPDATE = "update";
+    public static final String DELETE = "delete";
+    public static final String GET = "get";
+    public static final String SEARCH = "search";
+    public static final String SYNC = "sync";
+    public static final String TEST = "test";
+
+    private static final String[] OPERATIONS = {CREATE, UPDATE, DELETE, GET, SEARCH, SYNC, TEST};
+
+    private static final String DOMAIN = "com.evolveum.polygon.connector.eduid";
+
+    private static final ConcurrentMap<String, EduIdMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService SUMMARY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "eduid-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String endpoint;
+    private final String transport;
+    private final Map<String, EduIdOperationMetrics> operations = new LinkedHashMap<>();
+
+    // guarded by this
+    private long logIntervalMillis;
+    private ScheduledFuture<?> summary;
+
+    private EduIdMetrics(String endpoint, String user, String transport) {
+        this.endpoint = endpoint;
+        this.transport = transport;
+        for (String operation : OPERATIONS) {
+            operations.put(operation, new EduIdOperationMetrics(operation));
+        }
+        register(user);
+    }
+
+    public static EduIdMetrics forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + transport(configuration);
+        EduIdMetrics metrics = METRICS.get(key);
+        if (metrics == null) {
+            synchronized (METRICS) {
+                metrics = METRICS.get(key);
+                if (metrics == null) {
+                    // constructor registers MBeans, so create it once
+                    metrics = new EduIdMetrics(configuration.getServiceAddress(), configuration.getUsername(),
+                            transport(configuration));
+                    METRICS.put(key, metrics);
+                }
+            }
+        }
+        metrics.scheduleSummary(configuration.getMetricsLogInterval());
+        return metrics;
+    }
+
+    /**
+     * Logs the summary periodically, the interval of the connector initialized last is used.
+     *
+     * @param logIntervalMillis 0 or negative to stop logging
+     */
+    private synchronized void scheduleSummary(long logIntervalMillis) {
+        if (logIntervalMillis == this.logIntervalMillis) {
+            return;
+        }
+        this.logIntervalMillis = logIntervalMillis;
+        if (summary != null) {
+            summary.cancel(false);
+            summary = null;
+        }
+        if (logIntervalMillis > 0) {
+            summary = SUMMARY_EXECUTOR.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    LOG.info("{0}", EduIdMetrics.this);
+                }
+            }, logIntervalMillis, logIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return null for the blocking transport, which keeps the original MBean names
+     */
+    private static String transport(EduIdConfiguration configuration) {
+        return Boolean.TRUE.equals(configuration.getHttpAsync()) ? "async" : null;
+    }
+
+    private void register(String user) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (EduIdOperationMetrics operation : operations.values()) {
+            try {
+                ObjectName name = new ObjectName(DOMAIN + ":type=EduIdMetrics"
+                        + ",endpoint=" + ObjectName.quote(String.valueOf(endpoint))
+                        + ",user=" + ObjectName.quote(String.valueOf(user))
+                        + (transport == null ? "" : ",transport=" + transport)
+                        + ",operation=" + operation.getOperation());
+                if (server.isRegistered(name)) {
+                    // left by another class loader, e.g. the connector bundle was reloaded
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(operation, name);
+            } catch (JMException e) {
+                LOG.warn(e, "Error when registering metrics MBean for {0}: {1}", operation.getOperation(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param operation one of the operation constants
+     */
+    public EduIdOperationMetrics get(String operation) {
+        return operations.get(operation);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EduIdMetrics{endpoint=").append(endpoint);
+        if (transport != null) {
+            sb.append(", transport=").append(transport);
+        }
+        for (EduIdOperationMetrics operation : operations.values()) {
+            if (operation.getCount() > 0) {
+                sb.append(", ").append(operation);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one connector operation (create, get, search, ...) against one endpoint.
+ *
+ * Latency is kept in a histogram with exponentially growing buckets (10% wide, 1 microsecond up to several minutes),
+ * so percentiles are approximate but recording is lock free and needs constant memory.
+ */
+public class EduIdOperationMetrics implements EduIdOperationMetricsMBean {
+
+    private static final double BUCKET_BASE = 1.1;
+    private static final double LOG_BUCKET_BASE = Math.log(BUCKET_BASE);
+    private static final int BUCKETS = 220;
+
+    private final String operation;
+
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder hedgesOverBudget = new LongAdder();
+    private final LongAdder responseWaitNanos = new LongAdder();
+    private final LongAdder responseReadNanos = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+    public EduIdOperationMetrics(String operation) {
+        this.operation = operation;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Whole connector operation, including all its requests.
+     */
+    public void recordOperation(long nanos, boolean failed) {
+        count.increment();
+        if (failed) {
+            errors.increment();
+        }
+        latencyBuckets.incrementAndGet(bucket(nanos));
+        long max;
+        while (nanos > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    /**
+     * One HTTP exchange, wait time is from sending the request until the response headers are received.
+     * It includes serialization of the request body, which is streamed while it is sent, and server processing.
+     */
+    public void recordRequest(long waitNanos, int statusCode, long requestBytes) {
+        requests.increment();
+        this.responseWaitNanos.add(waitNanos);
+        if (requestBytes > 0) {
+            this.requestBytes.add(requestBytes);
+        }
+        LongAdder counter = statusCodes.get(statusCode);
+        if (counter == null) {
+            statusCodes.putIfAbsent(statusCode, new LongAdder());
+            counter = statusCodes.get(statusCode);
+        }
+        counter.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Second request sent because the first one was slow.
+     */
+    public void recordHedge() {
+        hedges.increment();
+    }
+
+    /**
+     * Response of the second request came first.
+     */
+    public void recordHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    /**
+     * Request was slow, but not hedged because of the budget.
+     */
+    public void recordHedgeOverBudget() {
+        hedgesOverBudget.increment();
+    }
+
+    /**
+     * Reading of the response body after its headers: receiving the streamed body, JSON decoding
+     * and the results handler, which is called while the body is read.
+     */
+    public void recordResponseRead(long nanos, long responseBytes) {
+        responseReadNanos.add(nanos);
+        if (responseBytes > 0) {
+            this.responseBytes.add(responseBytes);
+        }
+    }
+
+    private static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        if (micros <= 1) {
+            return 0;
+        }
+        return (int) Math.min(BUCKETS - 1, Math.ceil(Math.log(micros) / LOG_BUCKET_BASE));
+    }
+
+    /**
+     * @return upper bound of the bucket with the percentile in milliseconds, 0 without data
+     */
+    private double percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencyBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Math.pow(BUCKET_BASE, i) / 1000, getLatencyMax());
+            }
+        }
+        return getLatencyMax();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getLatencyP50() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public double getLatencyP95() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public double getLatencyP99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public double getLatencyMax() {
+        return millis(maxLatencyNanos.get());
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    @Override
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public long getHedgesOverBudget() {
+        return hedgesOverBudget.sum();
+    }
+
+    @Override
+    public double getResponseWaitTime() {
+        return millis(responseWaitNanos.sum());
+    }
+
+    @Override
+    public double getResponseReadTime() {
+        return millis(responseReadNanos.sum());
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public String getStatusCodes() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, LongAdder> entry : statusCodes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            latencyBuckets.set(i, 0);
+        }
+        maxLatencyNanos.set(0);
+        count.reset();
+        errors.reset();
+        requests.reset();
+        retries.reset();
+        hedges.reset();
+        hedgeWins.reset();
+        hedgesOverBudget.reset();
+        responseWaitNanos.reset();
+        responseReadNanos.reset();
+        requestBytes.reset();
+        responseBytes.reset();
+        statusCodes.clear();
+    }
+
+    @Override
+    public String toString() {
+        return operation + "{" +
+                "count=" + getCount() +
+                ", errors=" + getErrors() +
+                ", p50=" + String.format("%.1f", getLatencyP50()) +
+                ", p95=" + String.format("%.1f", getLatencyP95()) +
+                ", p99=" + String.format("%.1f", getLatencyP99()) +
+                ", max=" + String.format("%.1f", getLatencyMax()) +
+                ", requests=" + getRequests() +
+                ", retries=" + getRetries() +
+                ", hedges=" + getHedges() +
+                ", hedgeWins=" + getHedgeWins() +
+                ", hedgesOverBudget=" + getHedgesOverBudget() +
+                ", responseWait=" + String.format("%.1f", getResponseWaitTime()) +
+                ", responseRead=" + String.format("%.1f", getResponseReadTime()) +
+                ", requestBytes=" + getRequestBytes() +
+                ", responseBytes=" + getResponseBytes() +
+                ", statusCodes={" + getStatusCodes() + "}" +
+                '}';
+    }
+}
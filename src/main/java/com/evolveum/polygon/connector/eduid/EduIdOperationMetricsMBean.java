@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+/**
+ * JMX view of {@link EduIdOperationMetrics}, times are in milliseconds.
+ */
+public interface EduIdOperationMetricsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    double getLatencyP50();
+
+    double getLatencyP95();
+
+    double getLatencyP99();
+
+    double getLatencyMax();
+
+    long getRequests();
+
+    long getRetries();
+
+    long getHedges();
+
+    long getHedgeWins();
+
+    long getHedgesOverBudget();
+
+    double getResponseWaitTime();
+
+    double getResponseReadTime();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    String getStatusCodes();
+
+    void reset();
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.*;
+
+import java.util.*;
+
+/**
+ * Attributes requested by attributesToGet of a search or sync.
+ *
+ * All affiliation attributes are returned by default, so there is no projection without attributesToGet
+ * or with returnDefaultAttributes. Otherwise the server is asked for the requested attributes only and
+ * the decoder skips everything else. swissEduPersonUniqueID and meta are always requested, they are
+ * Uid, Name, revision and sync token.
+ */
+public final class EduIdProjection {
+
+    private static final Log LOG = Log.getLog(EduIdProjection.class);
+
+    private static final String ATTRIBUTES = "attributes";
+    private static final String EXCLUDED_ATTRIBUTES = "excludedAttributes";
+
+    private final Set<String> attributes;
+    private final String queryParameter;
+
+    private EduIdProjection(Set<String> attributes) {
+        this.attributes = Collections.unmodifiableSet(attributes);
+        this.queryParameter = buildQueryParameter(attributes);
+    }
+
+    /**
+     * @return null when all attributes are returned
+     */
+    public static EduIdProjection of(OperationOptions options) {
+        String[] attributesToGet = options == null ? null : options.getAttributesToGet();
+        if (attributesToGet == null || Boolean.TRUE.equals(options.getReturnDefaultAttributes())) {
+            return null;
+        }
+        Set<String> attributes = new LinkedHashSet<>();
+        attributes.add(EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID);
+        for (String name : attributesToGet) {
+            if (Uid.NAME.equals(name) || Name.NAME.equals(name)) {
+                continue;
+            }
+            if (EduIdAttribute.get(name) == null) {
+                LOG.ok("ignoring attribute {0} which is not in the schema", name);
+                continue;
+            }
+            attributes.add(name);
+        }
+        return new EduIdProjection(attributes);
+    }
+
+    /**
+     * SCIM attributes or excludedAttributes parameter, whichever is shorter.
+     */
+    private static String buildQueryParameter(Set<String> attributes) {
+        StringBuilder included = new StringBuilder(ATTRIBUTES).append('=').append(EduIdConnector.META);
+        StringBuilder excluded = new StringBuilder(EXCLUDED_ATTRIBUTES).append('=');
+        boolean anyExcluded = false;
+        for (EduIdAttribute attribute : EduIdAttribute.all()) {
+            if (attributes.contains(attribute.getName())) {
+                included.append(',').append(attribute.getName());
+            } else {
+                excluded.append(anyExcluded ? "," : "").append(attribute.getName());
+                anyExcluded = true;
+            }
+        }
+        if (!anyExcluded) {
+            return "";
+        }
+        // names are plain ASCII, no URL encoding needed
+        return excluded.length() < included.length() ? excluded.toString() : included.toString();
+    }
+
+    public boolean contains(String name) {
+        return attributes.contains(name);
+    }
+
+    /**
+     * @return query parameter without leading separator, empty when every attribute is requested
+     */
+    public String getQueryParameter() {
+        return queryParameter;
+    }
+
+    /**
+     * Appends the query parameter to the URI.
+     */
+    public static String appendTo(String uri, EduIdProjection projection) {
+        if (projection == null || projection.queryParameter.isEmpty()) {
+            return uri;
+        }
+        return uri + (uri.indexOf('?') < 0 ? '?' : '&') + projection.queryParameter;
+    }
+
+    /**
+     * Copy of e.g. a cached affiliation with the requested attributes only.
+     */
+    public ConnectorObject apply(ConnectorObject connectorObject) {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(connectorObject.getObjectClass());
+        builder.setUid(connectorObject.getUid());
+        builder.setName(connectorObject.getName());
+        for (Attribute attribute : connectorObject.getAttributes()) {
+            if (contains(attribute.getName())) {
+                builder.addAttribute(attribute);
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return "EduIdProjection{" +
+                "attributes=" + attributes +
+                '}';
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side token bucket in front of all requests to one endpoint, shared by all connector instances.
+ *
+ * The rate starts at rateLimit requests per second, is halved when the server throttles (429, 503)
+ * and grows back additively with every successful request (AIMD). Retry-After of a throttled response
+ * blocks all requests to the endpoint until it elapses. With rateLimit 0 only Retry-After is honored.
+ */
+public class EduIdRateLimiter {
+
+    private static final Log LOG = Log.getLog(EduIdRateLimiter.class);
+
+    private static final ConcurrentMap<String, EduIdRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    // rate never drops below this fraction of rateLimit
+    private static final double MIN_RATE_FRACTION = 0.05;
+    // additive increase per successful request, as fraction of rateLimit
+    private static final double INCREASE_FRACTION = 0.01;
+
+    private final double maxRate;
+    private final double burst;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+    private long blockedUntil;
+
+    private long throttled;
+
+    private EduIdRateLimiter(double maxRate, int burst, long baseDelayMillis, long maxDelayMillis) {
+        this.maxRate = maxRate;
+        this.burst = burst;
+        this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.rate = maxRate;
+        this.tokens = burst;
+        this.refilledAt = System.nanoTime();
+        this.blockedUntil = refilledAt;
+    }
+
+    public static EduIdRateLimiter forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername()
+                + "|" + configuration.getRateLimit() + "|" + configuration.getRateLimitBurst()
+                + "|" + configuration.getRetryBaseDelay() + "|" + configuration.getRetryMaxDelay();
+        EduIdRateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            LIMITERS.putIfAbsent(key, new EduIdRateLimiter(configuration.getRateLimit(), configuration.getRateLimitBurst(),
+                    configuration.getRetryBaseDelay(), configuration.getRetryMaxDelay()));
+            limiter = LIMITERS.get(key);
+        }
+        return limiter;
+    }
+
+    /**
+     * Waits until the request may be sent.
+     */
+    public void acquire() {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            LOG.ok("rate limit, waiting {0} ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            sleep(waitNanos);
+        }
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        long waitNanos = Math.max(0, blockedUntil - now);
+        if (maxRate <= 0) {
+            return waitNanos;
+        }
+        tokens = Math.min(burst, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+        tokens -= 1;
+        if (tokens < 0) {
+            waitNanos = Math.max(waitNanos, (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1)));
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Additive increase after a request which was not throttled.
+     */
+    public synchronized void onSuccess() {
+        if (maxRate > 0 && rate < maxRate) {
+            rate = Math.min(maxRate, rate + maxRate * INCREASE_FRACTION);
+        }
+    }
+
+    /**
+     * Multiplicative decrease after 429 or 503, Retry-After blocks all requests to the endpoint.
+     *
+     * @return Retry-After in nanoseconds, 0 when not sent
+     */
+    public long onThrottled(HttpResponse response) {
+        long retryAfterNanos = retryAfter(response);
+        synchronized (this) {
+            throttled++;
+            if (maxRate > 0) {
+                rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+                tokens = Math.min(tokens, 0);
+            }
+            long until = System.nanoTime() + retryAfterNanos;
+            if (until - blockedUntil > 0) {
+                blockedUntil = until;
+            }
+            LOG.info("Request throttled by server with status {0}, rate lowered to {1} requests/s, retry after {2} ms",
+                    response.getStatusLine().getStatusCode(), maxRate > 0 ? rate : "unlimited",
+                    TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+        }
+        return retryAfterNanos;
+    }
+
+    /**
+     * Exponential backoff with full jitter, at least Retry-After.
+     *
+     * @param attempt 0 for the first retry
+     */
+    public void backoff(int attempt, long retryAfterNanos) {
+        long ceiling = Math.min(maxDelayNanos, baseDelayNanos << Math.min(attempt, 30));
+        long delay = Math.max(retryAfterNanos, ThreadLocalRandom.current().nextLong(ceiling + 1));
+        LOG.ok("retry {0}, waiting {1} ms", attempt + 1, TimeUnit.NANOSECONDS.toMillis(delay));
+        sleep(delay);
+    }
+
+    /**
+     * Retry-After as delay-seconds or HTTP-date.
+     */
+    private long retryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null || header.getValue() == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if (date == null) {
+                LOG.warn("Unsupported Retry-After header {0}", value);
+                return 0;
+            }
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, date.getTime() - System.currentTimeMillis()));
+        }
+    }
+
+    private void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while waiting for rate limit", e);
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EduIdRateLimiter{" +
+                "rate=" + rate +
+                ", maxRate=" + maxRate +
+                ", burst=" + burst +
+                ", throttled=" + throttled +
+                '}';
+    }
+}
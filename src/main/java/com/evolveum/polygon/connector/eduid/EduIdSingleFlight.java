@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent reads: while a GET is in flight, the same GET from other threads
+ * waits for it and gets the same parsed affiliation or the same exception. Nothing is kept after the
+ * response, so unlike the cache no stale data is returned.
+ *
+ * A write to an affiliation detaches its reads in flight, reads started after the write send their own GET
+ * and readers which joined a detached read send it again, the response may predate the write. The first
+ * caller gets its own response like an uncoalesced read, the cache doesn't keep it when it is stale.
+ * Shared by all connector instances with the same endpoint and user.
+ */
+public class EduIdSingleFlight {
+
+    private static final Log LOG = Log.getLog(EduIdSingleFlight.class);
+
+    private static final ConcurrentMap<String, EduIdSingleFlight> FLIGHTS = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Read sent by the first caller.
+     */
+    public interface Read {
+        ConnectorObject read() throws IOException;
+    }
+
+    private static class Flight {
+        private final String uid;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean invalidated;
+        private ConnectorObject result;
+        private Throwable error;
+
+        private Flight(String uid) {
+            this.uid = uid;
+        }
+    }
+
+    public static EduIdSingleFlight forConfiguration(EduIdConfiguration configuration) {
+        String key = configuration.getServiceAddress() + "|" + configuration.getUsername();
+        EduIdSingleFlight singleFlight = FLIGHTS.get(key);
+        if (singleFlight == null) {
+            FLIGHTS.putIfAbsent(key, new EduIdSingleFlight());
+            singleFlight = FLIGHTS.get(key);
+        }
+        return singleFlight;
+    }
+
+    /**
+     * @param method HTTP method, together with the URI the key of the request
+     * @param uid affiliation which is read, for {@link #invalidate(String)}
+     */
+    public ConnectorObject execute(String method, String uri, String uid, Read read) throws IOException {
+        String key = method + " " + uri;
+        Flight flight = new Flight(uid);
+        Flight running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            LOG.ok("joining request in flight {0}", key);
+            ConnectorObject result = await(running, key);
+            if (running.invalidated) {
+                LOG.ok("affiliation was written during request {0}, reading again", key);
+                return execute(method, uri, uid, read);
+            }
+            return result;
+        }
+        requests.incrementAndGet();
+        try {
+            flight.result = read.read();
+            return flight.result;
+        } catch (IOException | RuntimeException | Error e) {
+            flight.error = e;
+            throw e;
+        } finally {
+            // only this flight, a write could have replaced it already
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    private ConnectorObject await(Flight flight, String key) throws IOException {
+        try {
+            flight.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while waiting for " + key, e);
+        }
+        if (flight.invalidated) {
+            return null;
+        }
+        // fields were written before countDown
+        if (flight.error instanceof IOException) {
+            throw (IOException) flight.error;
+        }
+        if (flight.error instanceof RuntimeException) {
+            throw (RuntimeException) flight.error;
+        }
+        if (flight.error instanceof Error) {
+            throw (Error) flight.error;
+        }
+        return flight.result;
+    }
+
+    /**
+     * Called after a write of the affiliation, later reads don't join reads which were sent before it
+     * and readers which already joined them read again.
+     */
+    public void invalidate(String uid) {
+        Iterator<Flight> iterator = flights.values().iterator();
+        while (iterator.hasNext()) {
+            Flight flight = iterator.next();
+            if (uid.equals(flight.uid)) {
+                flight.invalidated = true;
+                iterator.remove();
+            }
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EduIdSingleFlight{" +
+                "requests=" + requests +
+                ", coalesced=" + coalesced +
+                ", inFlight=" + flights.size() +
+                '}';
+    }
+}
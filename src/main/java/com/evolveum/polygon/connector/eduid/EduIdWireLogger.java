@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Logs requests and responses with their bodies, switched by wireLogEnabled and the OK level of this class logger.
+ *
+ * When disabled, every call returns after one boolean check and no strings are built. Bodies are truncated
+ * to wireLogMaxBodySize and values of wireLogRedactedAttributes are replaced by ***. Response bodies are captured
+ * while the connector streams them, so logging doesn't read the response twice. Only wireLogSampleRate percent
+ * of requests are logged, the sampling decision is derived from the request, so its request and response are
+ * logged together.
+ *
+ * JSON bodies are redacted structurally: attributes named in wireLogRedactedAttributes at any depth, e.g. in /Bulk
+ * data, and the value of PATCH operations whose path names such an attribute. Only a truncated body which can't
+ * be parsed falls back to matching the text.
+ */
+public class EduIdWireLogger {
+
+    private static final Log LOG = Log.getLog(EduIdWireLogger.class);
+
+    private static final String REDACTED = "***";
+    private static final String PATH = "path";
+    private static final String VALUE = "value";
+
+    private final boolean enabled;
+    private final int maxBodySize;
+    private final int sampleRate;
+    private final Set<String> redactedAttributes;
+    private final Pattern redactedValues;
+    // PATCH operation of a redacted attribute in a truncated body, all its "value" members are redacted too
+    private final Pattern redactedPaths;
+    private final Pattern redactedPatchValues;
+
+    public EduIdWireLogger(EduIdConfiguration configuration) {
+        this.enabled = Boolean.TRUE.equals(configuration.getWireLogEnabled());
+        this.maxBodySize = configuration.getWireLogMaxBodySize();
+        this.sampleRate = configuration.getWireLogSampleRate();
+        // SCIM attribute names are case insensitive
+        this.redactedAttributes = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        StringBuilder names = new StringBuilder();
+        String[] redacted = configuration.getWireLogRedactedAttributes();
+        for (int i = 0; redacted != null && i < redacted.length; i++) {
+            redactedAttributes.add(redacted[i]);
+            names.append(names.length() == 0 ? "" : "|").append(Pattern.quote(redacted[i]));
+        }
+        this.redactedValues = names.length() == 0 ? null : valuePattern(names.toString());
+        this.redactedPaths = names.length() == 0 ? null
+                : Pattern.compile("\"" + PATH + "\"\\s*:\\s*\"(?:[^\"\\[]*:)?(?:" + names + ")[\"\\[.]", Pattern.CASE_INSENSITIVE);
+        this.redactedPatchValues = names.length() == 0 ? null : valuePattern(names + "|" + VALUE);
+    }
+
+    private static Pattern valuePattern(String names) {
+        // string value, or its truncated beginning at the end of the body
+        return Pattern.compile("(\"(?:" + names + ")\"\\s*:\\s*)(\"(?:[^\"\\\\]|\\\\.)*(?:\"|$)|\\[[^\\]]*(?:\\]|$)|[^,}\\s]+)",
+                Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * @return true when the request and its response are logged
+     */
+    public boolean isLogged(HttpRequestBase request) {
+        if (!enabled || !isLogEnabled()) {
+            return false;
+        }
+        if (sampleRate >= 100) {
+            return true;
+        }
+        // stateless sampling, the same request object always gets the same decision
+        int hash = System.identityHashCode(request) * 0x9E3779B9;
+        return (hash >>> 1) % 100 < sampleRate;
+    }
+
+    /**
+     * @return true when the wire log is written, the OK level of this class logger by default
+     */
+    protected boolean isLogEnabled() {
+        return LOG.isOk();
+    }
+
+    /**
+     * Writes one redacted wire log message, to the OK level of this class logger by default.
+     */
+    protected void log(String message) {
+        LOG.ok("{0}", message);
+    }
+
+    /**
+     * Logs method, URI and body of the request, the entity must be repeatable. Headers are not logged.
+     */
+    public void logRequest(HttpRequestBase request) {
+        if (!isLogged(request)) {
+            return;
+        }
+        String body = "";
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity instanceof EduIdJsonEntity) {
+                // redacted before it is serialized, no parsing of the body
+                body = truncate(redactJson(((EduIdJsonEntity) entity).getDocument()).toString());
+            } else if (entity != null && entity.isRepeatable()) {
+                try (InputStream in = getContent(entity)) {
+                    CapturingInputStream capture = new CapturingInputStream(in);
+                    byte[] buffer = new byte[1024];
+                    long length = entity.getContentEncoding() == null ? entity.getContentLength() : -1;
+                    // with unknown length read to the end to get it
+                    while ((length < 0 || !capture.isFull()) && capture.read(buffer) != -1) {
+                        // captured
+                    }
+                    body = capture.getBody(length);
+                } catch (IOException e) {
+                    body = "<" + e + ">";
+                }
+            } else if (entity != null) {
+                body = "<not repeatable entity>";
+            }
+        }
+        log("--> " + request.getMethod() + " " + request.getURI() + " " + body);
+    }
+
+    /**
+     * Uncompressed content of a request entity.
+     */
+    private static InputStream getContent(HttpEntity entity) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+            // compressing entity can only be written
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            entity.writeTo(compressed);
+            return new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        }
+        return entity.getContent();
+    }
+
+    /**
+     * Logs the response when its body is closed, the body is captured while it is read by the connector.
+     */
+    public void logResponse(final HttpRequestBase request, final HttpResponse response, long nanos) {
+        if (!isLogged(request)) {
+            return;
+        }
+        final String status = response.getStatusLine().getStatusCode() + " " + request.getMethod() + " " + request.getURI()
+                + " in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            log("<-- " + status);
+            return;
+        }
+        response.setEntity(new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return new CapturingInputStream(super.getContent()) {
+                    private boolean logged;
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (!logged) {
+                                logged = true;
+                                log("<-- " + status + " " + getBody(-1));
+                            }
+                        }
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Attributes or attribute deltas for debug log messages, redacted and formatted only when the message is logged.
+     */
+    public Object redacted(final Collection<?> attributes) {
+        if (attributes == null || redactedAttributes.isEmpty()) {
+            return attributes;
+        }
+        return new Object() {
+            @Override
+            public String toString() {
+                List<Object> result = new ArrayList<>();
+                for (Object attribute : attributes) {
+                    String name = attribute instanceof Attribute ? ((Attribute) attribute).getName()
+                            : attribute instanceof AttributeDelta ? ((AttributeDelta) attribute).getName() : null;
+                    result.add(name != null && redactedAttributes.contains(name) ? name + "=" + REDACTED : attribute);
+                }
+                return result.toString();
+            }
+        };
+    }
+
+    /**
+     * @param body whole JSON body, or its beginning when it was truncated
+     */
+    String redact(String body) {
+        if (redactedValues == null) {
+            return body;
+        }
+        String trimmed = body.trim();
+        if (trimmed.startsWith("{") || trimmed.startsWith("[")) {
+            try {
+                Object json = new JSONTokener(trimmed).nextValue();
+                return redactJson(json).toString();
+            } catch (JSONException e) {
+                // truncated, redacted as text
+            }
+        }
+        Pattern pattern = redactedPaths.matcher(body).find() ? redactedPatchValues : redactedValues;
+        Matcher matcher = pattern.matcher(body);
+        if (!matcher.find()) {
+            return body;
+        }
+        StringBuffer sb = new StringBuffer();
+        do {
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(matcher.group(1) + "\"" + REDACTED + "\""));
+        } while (matcher.find());
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Copy of the JSON value with redacted attributes, the value itself is not changed, it can be sent yet.
+     */
+    private Object redactJson(Object value) {
+        if (redactedAttributes.isEmpty()) {
+            return value;
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            // PATCH operation, e.g. {"op":"replace","path":"fschImapPW","value":"..."}
+            boolean redactedPath = isRedactedPath(object.opt(PATH));
+            JSONObject copy = new JSONObject();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                boolean redacted = redactedAttributes.contains(key) || (redactedPath && VALUE.equals(key));
+                copy.put(key, redacted ? REDACTED : redactJson(object.opt(key)));
+            }
+            return copy;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) {
+                copy.put(redactJson(array.opt(i)));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * @param path SCIM attribute path, e.g. fschImapPW, urn:...:fschImapPW or email[type eq "work"].value
+     */
+    private boolean isRedactedPath(Object path) {
+        if (!(path instanceof String)) {
+            return false;
+        }
+        String name = (String) path;
+        int filter = name.indexOf('[');
+        if (filter >= 0) {
+            name = name.substring(0, filter);
+        }
+        // URN prefix can contain dots, e.g. ...:2.0:User:employeeNumber
+        name = name.substring(name.lastIndexOf(':') + 1);
+        int subAttribute = name.indexOf('.');
+        if (subAttribute >= 0) {
+            name = name.substring(0, subAttribute);
+        }
+        return redactedAttributes.contains(name);
+    }
+
+    private String truncate(String body) {
+        return body.length() > maxBodySize ? body.substring(0, maxBodySize) + "... (" + body.length() + " chars)" : body;
+    }
+
+    /**
+     * Keeps the first wireLogMaxBodySize bytes which were read through it.
+     */
+    private class CapturingInputStream extends FilterInputStream {
+
+        private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private long total;
+
+        private CapturingInputStream(InputStream in) {
+            super(in);
+        }
+
+        private boolean isFull() {
+            return captured.size() >= maxBodySize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                total++;
+                if (!isFull()) {
+                    captured.write(b);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                total += n;
+                captured.write(b, off, Math.min(n, maxBodySize - captured.size()));
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are not captured
+            long skipped = super.skip(n);
+            total += skipped;
+            return skipped;
+        }
+
+        /**
+         * @param length whole body length, -1 when the body was read to the end
+         */
+        String getBody(long length) {
+            long size = length >= 0 ? length : total;
+            String body = redact(new String(captured.toByteArray(), StandardCharsets.UTF_8));
+            return size > captured.size() ? body + "... (" + size + " bytes)" : body;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EduIdWireLogger{" +
+                "enabled=" + enabled +
+                ", maxBodySize=" + maxBodySize +
+                ", sampleRate=" + sampleRate +
+                ", redactedAttributes=" + redactedAttributes +
+                '}';
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths of the connector without network: response decoding, request JSON building,
+ * attribute conversion, filter translation and schema.
+ *
+ * Run with mvn -Pbenchmark verify, results are written to target/jmh-result-<timestamp>.json.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EduIdConnectorBenchmark {
+
+    /**
+     * Fixture in src/test/resources/benchmark: affiliation with mandatory attributes only or with all attributes.
+     */
+    @Param({"minimal", "full"})
+    public String fixture;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private byte[] affiliationJson;
+    private Set<Attribute> attributes;
+    private JSONObject currentJson;
+    private EduIdConnector connector;
+    private EduIdFilterTranslator translator;
+    private Filter uidsFilter;
+    private Filter attributeFilter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        affiliationJson = readFixture("/benchmark/affiliation-" + fixture + ".json");
+        ConnectorObject affiliation = decodeAffiliation();
+        attributes = affiliation.getAttributes();
+        currentJson = new JSONObject(new String(affiliationJson, StandardCharsets.UTF_8));
+
+        connector = new EduIdConnector();
+        translator = new EduIdFilterTranslator();
+
+        List<Filter> uids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            uids.add(FilterBuilder.equalTo(new Uid("8593" + i + "@example.ch")));
+        }
+        Filter or = uids.get(0);
+        for (int i = 1; i < uids.size(); i++) {
+            or = FilterBuilder.or(or, uids.get(i));
+        }
+        uidsFilter = or;
+        attributeFilter = FilterBuilder.and(
+                FilterBuilder.equalTo(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID, "0f5a3c8e-3b1c-4a43-9a0d-6f1e0c2a7b11")),
+                FilterBuilder.or(
+                        FilterBuilder.startsWith(AttributeBuilder.build(EduIdConnector.EMAIL, "anna.")),
+                        FilterBuilder.not(FilterBuilder.equalTo(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID_AFFILIATION_STATUS, "inactive")))));
+    }
+
+    private static byte[] readFixture(String name) throws IOException {
+        try (InputStream in = EduIdConnectorBenchmark.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public ConnectorObject decodeAffiliation() {
+        return new EduIdJsonDecoder(new ByteArrayInputStream(affiliationJson), Long.MAX_VALUE).readAffiliation();
+    }
+
+    @Benchmark
+    public byte[] buildCreateRequest() {
+        JSONObject jo = new JSONObject();
+        String schema[] = {EduIdConnector.SCHEMAS_VALUE};
+        jo.put(EduIdConnector.SCHEMAS, schema);
+        EduIdConnector.mergeAttributes(jo, attributes, true);
+        return jo.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create request as it is sent, serialized by the streaming entity into a discarding stream.
+     */
+    @Benchmark
+    public long writeCreateRequest() throws IOException {
+        JSONObject jo = new JSONObject();
+        String schema[] = {EduIdConnector.SCHEMAS_VALUE};
+        jo.put(EduIdConnector.SCHEMAS, schema);
+        EduIdConnector.mergeAttributes(jo, attributes, true);
+        EduIdJsonEntity entity = new EduIdJsonEntity(jo, "application/scim+json");
+        entity.writeTo(DISCARD);
+        return entity.getWrittenLength();
+    }
+
+    /**
+     * Update with the current values, compares every attribute and changes nothing.
+     */
+    @Benchmark
+    public boolean mergeUnchangedUpdate() {
+        return EduIdConnector.mergeAttributes(currentJson, attributes, false);
+    }
+
+    @Benchmark
+    public Integer[] getIntMultiValAttr() {
+        return connector.getIntMultiValAttr(attributes, "swissEduPersonStudyBranch2", null);
+    }
+
+    @Benchmark
+    public List<EduIdFilter> translateUidsFilter() {
+        return translator.translate(uidsFilter);
+    }
+
+    @Benchmark
+    public List<EduIdFilter> translateAttributeFilter() {
+        return translator.translate(attributeFilter);
+    }
+
+    @Benchmark
+    public Schema schema() {
+        return connector.schema();
+    }
+}
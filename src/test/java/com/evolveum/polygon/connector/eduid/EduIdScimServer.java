@@ -0,0 +1,861 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.eduid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process stand-in for the edu-ID SCIM affiliation API, for tests without network and credentials.
+ *
+ * Emulates /Affiliations (GET, POST, PUT, PATCH, DELETE, listing with startIndex, count, filter, sortBy),
+ * /Bulk and /ServiceProviderConfig with SCIM error bodies (409 uniqueness, 400 invalidValue, 404, 412).
+ * Request and response bodies are gzip compressed according to Content-Encoding and Accept-Encoding.
+ * Affiliations are identified by swissEduPersonUniqueID and kept in memory.
+ *
+ * Latency, error injection and throttling (429 with Retry-After) can be set at runtime, so the server is also
+ * usable for throughput and tail latency measurements of the connector.
+ */
+public class EduIdScimServer {
+
+    private static final String CONTEXT = "/scim";
+    private static final String ERROR_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:Error";
+    private static final String LIST_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:ListResponse";
+    private static final String BULK_RESPONSE_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+
+    private final String username;
+    private final String password;
+
+    private final Map<String, JSONObject> affiliations = new LinkedHashMap<>();
+    private long versionCounter;
+
+    private volatile long latencyMillis;
+    private volatile long slowLatencyMillis;
+    private final AtomicInteger slowToInject = new AtomicInteger();
+    private volatile long lateResponseMillis;
+    private final AtomicInteger lateToInject = new AtomicInteger();
+    private final AtomicInteger droppedToInject = new AtomicInteger();
+    private volatile int errorStatus;
+    private volatile String errorScimType;
+    private final AtomicInteger errorsToInject = new AtomicInteger();
+    private volatile int retryAfterSeconds;
+    private final AtomicInteger throttledToInject = new AtomicInteger();
+
+    private volatile String lastProjection;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger throttledRequests = new AtomicInteger();
+    private final AtomicInteger compressedRequests = new AtomicInteger();
+    private final AtomicInteger chunkedRequests = new AtomicInteger();
+    private final AtomicInteger compressedResponses = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public EduIdScimServer(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(CONTEXT, new ScimHandler());
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return serviceAddress for {@link EduIdConfiguration}, with trailing slash
+     */
+    public String getServiceAddress() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + CONTEXT + "/";
+    }
+
+    /**
+     * Every request is delayed by this many milliseconds.
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Next count requests are delayed by latencyMillis on top of {@link #setLatency(long)}, later requests are not.
+     */
+    public void slowDown(int count, long latencyMillis) {
+        this.slowLatencyMillis = latencyMillis;
+        this.slowToInject.set(count);
+    }
+
+    /**
+     * Next count responses are built at once and sent latencyMillis later, a request processed meanwhile doesn't change them.
+     */
+    public void delayResponses(int count, long latencyMillis) {
+        this.lateResponseMillis = latencyMillis;
+        this.lateToInject.set(count);
+    }
+
+    /**
+     * Next count requests are answered by closing the connection without a response.
+     */
+    public void dropConnections(int count) {
+        this.droppedToInject.set(count);
+    }
+
+    /**
+     * Next count requests fail with the status, scimType is sent in the error body when not null.
+     */
+    public void injectErrors(int status, String scimType, int count) {
+        this.errorStatus = status;
+        this.errorScimType = scimType;
+        this.errorsToInject.set(count);
+    }
+
+    /**
+     * Next count requests are rejected with 429 and Retry-After (omitted when retryAfterSeconds is negative).
+     */
+    public void throttle(int count, int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.throttledToInject.set(count);
+    }
+
+    public void reset() {
+        synchronized (affiliations) {
+            affiliations.clear();
+        }
+        latencyMillis = 0;
+        slowToInject.set(0);
+        lateToInject.set(0);
+        droppedToInject.set(0);
+        errorsToInject.set(0);
+        throttledToInject.set(0);
+        requests.set(0);
+        throttledRequests.set(0);
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    /**
+     * @return requests with gzip Content-Encoding
+     */
+    public int getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return requests with a chunked body instead of Content-Length
+     */
+    public int getChunkedRequests() {
+        return chunkedRequests.get();
+    }
+
+    /**
+     * @return responses sent gzip compressed because of Accept-Encoding
+     */
+    public int getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    public JSONObject getAffiliation(String uid) {
+        synchronized (affiliations) {
+            JSONObject affiliation = affiliations.get(uid);
+            return affiliation == null ? null : new JSONObject(affiliation.toString());
+        }
+    }
+
+    /**
+     * Updates the affiliation like another client would, with new meta.lastModified and version.
+     */
+    public void modify(String uid, String name, Object value) {
+        synchronized (affiliations) {
+            JSONObject data = new JSONObject(affiliations.get(uid).toString());
+            data.put(name, value);
+            store(uid, data, 200);
+        }
+    }
+
+    /**
+     * Changes the stored affiliation directly, e.g. adds an extension attribute the connector doesn't know.
+     */
+    public void putAttribute(String uid, String name, Object value) {
+        synchronized (affiliations) {
+            affiliations.get(uid).put(name, value);
+        }
+    }
+
+    public int getAffiliationCount() {
+        synchronized (affiliations) {
+            return affiliations.size();
+        }
+    }
+
+    private static class Response {
+        private final int status;
+        private final JSONObject body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        private Response(int status, JSONObject body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private class ScimHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                // decided before the request is counted, a request seen by getRequests() is not dropped later
+                boolean drop = droppedToInject.getAndDecrement() > 0;
+                requests.incrementAndGet();
+                if (drop) {
+                    // closing the exchange without response headers closes the connection
+                    return;
+                }
+                long latency = latencyMillis + (slowToInject.getAndDecrement() > 0 ? slowLatencyMillis : 0);
+                if (latency > 0) {
+                    TimeUnit.MILLISECONDS.sleep(latency);
+                }
+                Response response = dispatch(exchange);
+                if (lateToInject.getAndDecrement() > 0) {
+                    TimeUnit.MILLISECONDS.sleep(lateResponseMillis);
+                }
+                send(exchange, response);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                send(exchange, error(500, null, e.toString()));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private Response dispatch(HttpExchange exchange) throws IOException {
+            if (throttledToInject.getAndDecrement() > 0) {
+                throttledRequests.incrementAndGet();
+                Response response = error(429, null, "Too many requests");
+                if (retryAfterSeconds >= 0) {
+                    response.headers.put("Retry-After", String.valueOf(retryAfterSeconds));
+                }
+                return response;
+            }
+            if (errorsToInject.getAndDecrement() > 0) {
+                return error(errorStatus, errorScimType, "Injected error");
+            }
+            if (!authorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                return error(401, null, "Unauthorized");
+            }
+
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring(CONTEXT.length()).replaceAll("^/+", "");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            String[] segments = path.split("/");
+
+            if ("ServiceProviderConfig".equals(path) && "GET".equals(method)) {
+                return new Response(200, serviceProviderConfig());
+            }
+            if ("Bulk".equals(path) && "POST".equals(method)) {
+                return bulk(readBody(exchange));
+            }
+            if (!EduIdConnector.AFFILIATIONS.equals(segments[0]) || segments.length > 2) {
+                return error(404, null, "Unknown endpoint " + path);
+            }
+            if (segments.length == 1) {
+                if ("GET".equals(method)) {
+                    return project(list(query), query);
+                }
+                if ("POST".equals(method)) {
+                    return execute(method, null, null, readBody(exchange));
+                }
+                return error(405, null, method + " not allowed");
+            }
+            String body = "PUT".equals(method) || "PATCH".equals(method) ? readBody(exchange) : null;
+            return project(execute(method, segments[1], ifMatch, body), query);
+        }
+
+        private boolean authorized(String authorization) {
+            String credentials = username + ":" + password;
+            String expected = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+            return expected.equals(authorization);
+        }
+
+        private void send(HttpExchange exchange, Response response) throws IOException {
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+            }
+            if (response.body == null) {
+                exchange.sendResponseHeaders(response.status, -1);
+                return;
+            }
+            byte[] bytes = response.body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/scim+json");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                compressedResponses.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(response.status, 0);
+                try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                    out.write(bytes);
+                }
+                return;
+            }
+            exchange.sendResponseHeaders(response.status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Single resource operation, also used for /Bulk operations.
+     */
+    private Response execute(String method, String uid, String ifMatch, String body) {
+        JSONObject data;
+        try {
+            data = body == null ? null : new JSONObject(body);
+        } catch (JSONException e) {
+            return error(400, "invalidSyntax", e.getMessage());
+        }
+        synchronized (affiliations) {
+            JSONObject current = uid == null ? null : affiliations.get(uid);
+            if (uid != null && current == null) {
+                return error(404, null, "Affiliation " + uid + " not found");
+            }
+            if (current != null && ifMatch != null && !ifMatch.equals(version(current))) {
+                return error(412, null, "Version mismatch, current version " + version(current));
+            }
+            switch (method) {
+                case "GET":
+                    return resource(200, current);
+                case "DELETE":
+                    affiliations.remove(uid);
+                    return new Response(204, null);
+                case "POST":
+                    return store(null, data, 201);
+                case "PUT":
+                    return store(uid, data, 200);
+                case "PATCH":
+                    return patch(uid, current, data);
+                default:
+                    return error(405, null, method + " not allowed");
+            }
+        }
+    }
+
+    private Response store(String uid, JSONObject data, int status) {
+        String newUid = data.optString(EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID, null);
+        for (String required : EduIdConnector.REQUIRED_SINGLE_ATTRIBUTES) {
+            if (!data.has(required) || data.optString(required).isEmpty()) {
+                return error(400, "invalidValue", "Missing mandatory attribute " + required);
+            }
+        }
+        if (!newUid.equals(uid) && affiliations.containsKey(newUid)) {
+            return error(409, "uniqueness", "Affiliation " + newUid + " already exists");
+        }
+        JSONObject meta = new JSONObject();
+        meta.put("resourceType", "Affiliation");
+        meta.put("created", uid == null ? Instant.now().toString() : affiliations.get(uid).getJSONObject("meta").getString("created"));
+        // second precision like many SCIM servers, several changes can share one lastModified
+        meta.put("lastModified", Instant.now().truncatedTo(ChronoUnit.SECONDS).toString());
+        meta.put("version", "W/\"" + (++versionCounter) + "\"");
+        data.put("meta", meta);
+        if (uid != null) {
+            affiliations.remove(uid);
+        }
+        affiliations.put(newUid, data);
+        Response response = resource(status, data);
+        response.headers.put("Location", "/" + EduIdConnector.AFFILIATIONS + "/" + newUid);
+        return response;
+    }
+
+    private Response patch(String uid, JSONObject current, JSONObject patch) {
+        JSONObject data = new JSONObject(current.toString());
+        data.remove("meta");
+        JSONArray operations = patch.optJSONArray("Operations");
+        for (int i = 0; operations != null && i < operations.length(); i++) {
+            JSONObject operation = operations.getJSONObject(i);
+            String op = operation.getString("op").toLowerCase(Locale.ROOT);
+            String path = operation.getString("path");
+            Object value = operation.opt("value");
+            Object old = data.opt(path);
+            if ("replace".equals(op)) {
+                data.put(path, value);
+            } else if ("add".equals(op)) {
+                if (old instanceof JSONArray && value instanceof JSONArray) {
+                    for (int j = 0; j < ((JSONArray) value).length(); j++) {
+                        ((JSONArray) old).put(((JSONArray) value).get(j));
+                    }
+                } else {
+                    data.put(path, value);
+                }
+            } else if ("remove".equals(op)) {
+                if (old instanceof JSONArray && value instanceof JSONArray) {
+                    JSONArray remaining = new JSONArray();
+                    Set<String> removed = new HashSet<>();
+                    for (int j = 0; j < ((JSONArray) value).length(); j++) {
+                        removed.add(String.valueOf(((JSONArray) value).get(j)));
+                    }
+                    for (int j = 0; j < ((JSONArray) old).length(); j++) {
+                        if (!removed.contains(String.valueOf(((JSONArray) old).get(j)))) {
+                            remaining.put(((JSONArray) old).get(j));
+                        }
+                    }
+                    data.put(path, remaining);
+                } else {
+                    data.remove(path);
+                }
+            } else {
+                return error(400, "invalidSyntax", "Unsupported op " + op);
+            }
+        }
+        return store(uid, data, 200);
+    }
+
+    /**
+     * Applies attributes or excludedAttributes to a resource or all resources of a ListResponse,
+     * swissEduPersonUniqueID and meta are always returned.
+     */
+    private Response project(Response response, Map<String, String> query) {
+        String attributes = query.get("attributes");
+        String excludedAttributes = query.get("excludedAttributes");
+        lastProjection = attributes != null ? "attributes=" + attributes
+                : excludedAttributes != null ? "excludedAttributes=" + excludedAttributes : null;
+        if (lastProjection == null || response.body == null || response.status >= 300) {
+            return response;
+        }
+        JSONArray resources = response.body.optJSONArray("Resources");
+        for (int i = 0; resources != null && i < resources.length(); i++) {
+            project(resources.getJSONObject(i), attributes, excludedAttributes);
+        }
+        if (resources == null) {
+            project(response.body, attributes, excludedAttributes);
+        }
+        return response;
+    }
+
+    private static void project(JSONObject resource, String attributes, String excludedAttributes) {
+        Set<String> included = attributes == null ? null : new HashSet<>(Arrays.asList(attributes.split(",")));
+        Set<String> excluded = excludedAttributes == null ? Collections.<String>emptySet()
+                : new HashSet<>(Arrays.asList(excludedAttributes.split(",")));
+        for (String name : new ArrayList<>(resource.keySet())) {
+            if (EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID.equals(name) || "meta".equals(name)) {
+                continue;
+            }
+            if ((included != null && !included.contains(name)) || (included == null && excluded.contains(name))) {
+                resource.remove(name);
+            }
+        }
+    }
+
+    /**
+     * @return attributes or excludedAttributes parameter of the last request, null when it had none
+     */
+    public String getLastProjection() {
+        return lastProjection;
+    }
+
+    private Response list(Map<String, String> query) {
+        int startIndex = Math.max(1, intParam(query, "startIndex", 1));
+        int count = Math.max(0, intParam(query, "count", 100));
+        Filter filter;
+        try {
+            filter = query.containsKey("filter") ? new FilterParser(query.get("filter")).parse() : null;
+        } catch (IllegalArgumentException e) {
+            return error(400, "invalidFilter", e.getMessage());
+        }
+
+        List<JSONObject> matching = new ArrayList<>();
+        synchronized (affiliations) {
+            for (JSONObject affiliation : affiliations.values()) {
+                if (filter == null || filter.matches(affiliation)) {
+                    matching.add(new JSONObject(affiliation.toString()));
+                }
+            }
+        }
+        final String sortBy = query.get("sortBy");
+        if (sortBy != null) {
+            final boolean descending = "descending".equals(query.get("sortOrder"));
+            Collections.sort(matching, new Comparator<JSONObject>() {
+                @Override
+                public int compare(JSONObject o1, JSONObject o2) {
+                    int result = compareValues(value(o1, sortBy), value(o2, sortBy));
+                    return descending ? -result : result;
+                }
+            });
+        }
+
+        JSONArray resources = new JSONArray();
+        for (int i = startIndex - 1; i < matching.size() && resources.length() < count; i++) {
+            resources.put(matching.get(i));
+        }
+        JSONObject body = new JSONObject();
+        body.put("schemas", new JSONArray().put(LIST_SCHEMA));
+        body.put("totalResults", matching.size());
+        body.put("startIndex", startIndex);
+        body.put("itemsPerPage", resources.length());
+        body.put("Resources", resources);
+        return new Response(200, body);
+    }
+
+    private Response bulk(String body) {
+        JSONObject request = new JSONObject(body);
+        JSONArray operations = request.getJSONArray("Operations");
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < operations.length(); i++) {
+            JSONObject operation = operations.getJSONObject(i);
+            String method = operation.getString("method");
+            String[] segments = operation.getString("path").replaceAll("^/+", "").split("/");
+            String uid = segments.length > 1 ? segments[1] : null;
+            JSONObject data = operation.optJSONObject("data");
+            Response response = execute(method, uid, operation.optString("version", null), data == null ? null : data.toString());
+
+            JSONObject result = new JSONObject();
+            result.put("method", method);
+            if (operation.has("bulkId")) {
+                result.put("bulkId", operation.get("bulkId"));
+            }
+            result.put("status", String.valueOf(response.status));
+            if (response.status >= 400) {
+                result.put("response", response.body);
+            } else if (response.body != null) {
+                String newUid = response.body.getString(EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID);
+                result.put("location", "/" + EduIdConnector.AFFILIATIONS + "/" + newUid);
+                result.put("version", version(response.body));
+            }
+            results.put(result);
+        }
+        JSONObject response = new JSONObject();
+        response.put("schemas", new JSONArray().put(BULK_RESPONSE_SCHEMA));
+        response.put("Operations", results);
+        return new Response(200, response);
+    }
+
+    private JSONObject serviceProviderConfig() {
+        JSONObject config = new JSONObject();
+        config.put("schemas", new JSONArray().put("urn:ietf:params:scim:schemas:core:2.0:ServiceProviderConfig"));
+        config.put("patch", new JSONObject().put("supported", true));
+        config.put("bulk", new JSONObject().put("supported", true).put("maxOperations", 1000).put("maxPayloadSize", 1048576));
+        config.put("filter", new JSONObject().put("supported", true).put("maxResults", 1000));
+        config.put("changePassword", new JSONObject().put("supported", false));
+        config.put("sort", new JSONObject().put("supported", true));
+        config.put("etag", new JSONObject().put("supported", true));
+        return config;
+    }
+
+    private Response resource(int status, JSONObject affiliation) {
+        Response response = new Response(status, new JSONObject(affiliation.toString()));
+        response.headers.put("ETag", version(affiliation));
+        return response;
+    }
+
+    private static Response error(int status, String scimType, String detail) {
+        JSONObject body = new JSONObject();
+        body.put("schemas", new JSONArray().put(ERROR_SCHEMA));
+        body.put("status", String.valueOf(status));
+        // the connector expects scimType in 400 and 409 errors
+        body.put("scimType", scimType == null ? "" : scimType);
+        body.put("detail", detail);
+        return new Response(status, body);
+    }
+
+    private static String version(JSONObject affiliation) {
+        return affiliation.getJSONObject("meta").getString("version");
+    }
+
+    private String readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("chunked".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Transfer-Encoding"))) {
+            chunkedRequests.incrementAndGet();
+        }
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            compressedRequests.incrementAndGet();
+            body = new GZIPInputStream(body);
+        }
+        try (InputStream in = body) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int i = parameter.indexOf('=');
+            if (i > 0) {
+                query.put(URLDecoder.decode(parameter.substring(0, i), "UTF-8"), URLDecoder.decode(parameter.substring(i + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static int intParam(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Attribute value by path, e.g. meta.lastModified.
+     */
+    private static Object value(JSONObject affiliation, String path) {
+        Object value = affiliation;
+        for (String name : path.split("\\.")) {
+            value = value instanceof JSONObject ? ((JSONObject) value).opt(name) : null;
+        }
+        return value;
+    }
+
+    /**
+     * Numbers as numbers, timestamps as instants, everything else as strings.
+     */
+    private static int compareValues(Object left, Object right) {
+        if (left == null || right == null) {
+            return left == null ? (right == null ? 0 : -1) : 1;
+        }
+        if (left instanceof Number && right instanceof Number) {
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+        try {
+            return Instant.parse(String.valueOf(left)).compareTo(Instant.parse(String.valueOf(right)));
+        } catch (DateTimeParseException e) {
+            return String.valueOf(left).compareTo(String.valueOf(right));
+        }
+    }
+
+    private interface Filter {
+        boolean matches(JSONObject affiliation);
+    }
+
+    /**
+     * SCIM filter with eq, ne, co, sw, ew, gt, ge, lt, le, pr, and, or, not and parentheses.
+     */
+    private static class FilterParser {
+
+        private final String filter;
+        private int position;
+
+        private FilterParser(String filter) {
+            this.filter = filter;
+        }
+
+        private Filter parse() {
+            Filter result = parseOr();
+            skipSpaces();
+            if (position < filter.length()) {
+                throw new IllegalArgumentException("Unexpected '" + filter.substring(position) + "' in filter " + filter);
+            }
+            return result;
+        }
+
+        private Filter parseOr() {
+            Filter left = parseAnd();
+            while (keyword("or")) {
+                final Filter l = left;
+                final Filter r = parseAnd();
+                left = new Filter() {
+                    @Override
+                    public boolean matches(JSONObject affiliation) {
+                        return l.matches(affiliation) || r.matches(affiliation);
+                    }
+                };
+            }
+            return left;
+        }
+
+        private Filter parseAnd() {
+            Filter left = parseFactor();
+            while (keyword("and")) {
+                final Filter l = left;
+                final Filter r = parseFactor();
+                left = new Filter() {
+                    @Override
+                    public boolean matches(JSONObject affiliation) {
+                        return l.matches(affiliation) && r.matches(affiliation);
+                    }
+                };
+            }
+            return left;
+        }
+
+        private Filter parseFactor() {
+            if (keyword("not")) {
+                final Filter negated = parseFactor();
+                return new Filter() {
+                    @Override
+                    public boolean matches(JSONObject affiliation) {
+                        return !negated.matches(affiliation);
+                    }
+                };
+            }
+            skipSpaces();
+            if (position < filter.length() && filter.charAt(position) == '(') {
+                position++;
+                Filter inner = parseOr();
+                skipSpaces();
+                if (position >= filter.length() || filter.charAt(position) != ')') {
+                    throw new IllegalArgumentException("Missing ')' in filter " + filter);
+                }
+                position++;
+                return inner;
+            }
+            final String path = word();
+            final String operator = word().toLowerCase(Locale.ROOT);
+            final Object expected = "pr".equals(operator) ? null : literal();
+            return new Filter() {
+                @Override
+                public boolean matches(JSONObject affiliation) {
+                    Object actual = value(affiliation, path);
+                    if (actual instanceof JSONArray) {
+                        JSONArray values = (JSONArray) actual;
+                        for (int i = 0; i < values.length(); i++) {
+                            if (compare(values.get(i), operator, expected)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                    return compare(actual, operator, expected);
+                }
+            };
+        }
+
+        private static boolean compare(Object actual, String operator, Object expected) {
+            if ("pr".equals(operator)) {
+                return actual != null && !JSONObject.NULL.equals(actual);
+            }
+            if (actual == null || JSONObject.NULL.equals(actual)) {
+                return "ne".equals(operator);
+            }
+            String actualString = String.valueOf(actual);
+            String expectedString = String.valueOf(expected);
+            switch (operator) {
+                case "eq":
+                    return compareValues(actual, expected) == 0;
+                case "ne":
+                    return compareValues(actual, expected) != 0;
+                case "co":
+                    return actualString.contains(expectedString);
+                case "sw":
+                    return actualString.startsWith(expectedString);
+                case "ew":
+                    return actualString.endsWith(expectedString);
+                case "gt":
+                    return compareValues(actual, expected) > 0;
+                case "ge":
+                    return compareValues(actual, expected) >= 0;
+                case "lt":
+                    return compareValues(actual, expected) < 0;
+                case "le":
+                    return compareValues(actual, expected) <= 0;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator " + operator);
+            }
+        }
+
+        private boolean keyword(String keyword) {
+            skipSpaces();
+            int end = position + keyword.length();
+            if (filter.regionMatches(true, position, keyword, 0, keyword.length())
+                    && (end == filter.length() || filter.charAt(end) == ' ' || filter.charAt(end) == '(')) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private String word() {
+            skipSpaces();
+            int start = position;
+            while (position < filter.length() && filter.charAt(position) != ' ' && filter.charAt(position) != ')') {
+                position++;
+            }
+            if (start == position) {
+                throw new IllegalArgumentException("Expected attribute or operator at " + start + " in filter " + filter);
+            }
+            return filter.substring(start, position);
+        }
+
+        private Object literal() {
+            skipSpaces();
+            if (position < filter.length() && filter.charAt(position) == '"') {
+                StringBuilder sb = new StringBuilder();
+                position++;
+                while (position < filter.length() && filter.charAt(position) != '"') {
+                    if (filter.charAt(position) == '\\') {
+                        position++;
+                    }
+                    sb.append(filter.charAt(position++));
+                }
+                position++;
+                return sb.toString();
+            }
+            String word = word();
+            if ("true".equals(word) || "false".equals(word)) {
+                return Boolean.valueOf(word);
+            }
+            return Double.valueOf(word);
+        }
+
+        private void skipSpaces() {
+            while (position < filter.length() && filter.charAt(position) == ' ') {
+                position++;
+            }
+        }
+    }
+}
@@ -15,166 +15,1228 @@
  */
 package com.evolveum.polygon.connector.eduid;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.util.EntityUtils;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.PreconditionFailedException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
-import org.json.JSONArray;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.json.JSONObject;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
-import java.io.IOException;
-import java.io.InputStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
 
 /**
+ * Connector operations against {@link EduIdScimServer}, no edu-ID test account is needed.
+ *
  * @author oscar
  */
 public class TestClient {
 
     private static final Log LOG = Log.getLog(TestClient.class);
 
+    private static final String USERNAME = "connector";
+    private static final String PASSWORD = "secret";
+    private static final String DOMAIN = "@example.ch";
+
+    private static EduIdScimServer server;
     private static EduIdConfiguration conf;
     private static EduIdConnector conn;
 
-    private static String DOMAIN = "";
-    private static final String ID = "859379";
+    private static int sequence = 859379;
 
     ObjectClass affiliationObjectClass = new ObjectClass(EduIdConnector.AFFILIATION_OBJECT_CLASS);
 
     @BeforeClass
     public static void setUp() throws Exception {
-        String fileName = "test.properties";
-
-        final Properties properties = new Properties();
-        InputStream inputStream = TestClient.class.getClassLoader().getResourceAsStream(fileName);
-        if (inputStream == null) {
-            throw new IOException("Sorry, unable to find " + fileName);
-        }
-        properties.load(inputStream);
-
-        conf = new EduIdConfiguration();
-        conf.setUsername(properties.getProperty("username"));
-        conf.setPassword(new GuardedString(properties.getProperty("password").toCharArray()));
-        conf.setServiceAddress(properties.getProperty("serviceAddress"));
-        conf.setAuthMethod(properties.getProperty("authMethod"));
-        conf.setTrustAllCertificates(Boolean.parseBoolean(properties.getProperty("trustAllCertificates")));
+        server = new EduIdScimServer(USERNAME, PASSWORD);
+        server.start();
 
+        conf = configuration();
         conn = new EduIdConnector();
         conn.init(conf);
-
-        DOMAIN = properties.getProperty("domain");
     }
 
-    @Test
-    public void testConn() {
-        conn.test();
+    @AfterClass
+    public static void tearDown() {
+        conn.dispose();
+        server.stop();
     }
 
-    @Test
-    public void testSchema() {
-        Schema schema = conn.schema();
-        LOG.info("schema: " + schema);
-        // TODO: verify manually
+    @AfterMethod
+    public void resetServer() {
+        server.setLatency(0);
+        server.injectErrors(0, null, 0);
+        server.throttle(0, 0);
+        server.slowDown(0, 0);
+        server.delayResponses(0, 0);
+        server.dropConnections(0);
     }
 
-    @Test
-    public void testGet() throws IOException {
-        HttpGet request = new HttpGet(conf.getServiceAddress() + EduIdConnector.AFFILIATIONS + "/" + ID+DOMAIN);
-        CloseableHttpResponse response = conn.execute(request);
-        conn.processResponseErrors(response);
-        LOG.info("resp: {0}", response);
-        String result = EntityUtils.toString(response.getEntity());
-        LOG.info("content: {0}", result);
-        // TODO: verify manually over GUI
+    private static EduIdConfiguration configuration() {
+        EduIdConfiguration configuration = new EduIdConfiguration();
+        configuration.setUsername(USERNAME);
+        configuration.setPassword(new GuardedString(PASSWORD.toCharArray()));
+        configuration.setServiceAddress(server.getServiceAddress());
+        configuration.setAuthMethod("BASIC");
+        configuration.setPageSize(2);
+        configuration.setRetryBaseDelay(10);
+        configuration.setRetryMaxDelay(100);
+        return configuration;
     }
 
-    @Test
-    public void testCreateUser() {
+    private static synchronized String nextId() {
+        return (sequence++) + DOMAIN;
+    }
 
-        //create
+    private Set<Attribute> affiliation(String id, String givenName, String... emails) {
         Set<Attribute> attributes = new HashSet<Attribute>();
-        String randName = ID; //"1111";// + (new Random()).nextInt();
-        String id = randName+DOMAIN;
-
-//        attributes.add(AttributeBuilder.build(Name.NAME, randName));
         String[] schemas = {EduIdConnector.SCHEMAS_VALUE};
         attributes.add(AttributeBuilder.build(EduIdConnector.SCHEMAS, schemas));
         attributes.add(AttributeBuilder.build(EduIdConnector.ID, id));
         attributes.add(AttributeBuilder.build(EduIdConnector.EXTERNAL_ID, id));
         attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID, id));
         attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID, "00007a31-2f1f-4f3f-9a6a-0064363eb6c4"));
-        String[] emails = {"bsmith@example.com"};
-        attributes.add(AttributeBuilder.build(EduIdConnector.EMAIL, emails));
-        attributes.add(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, "Barbara"));
+        attributes.add(AttributeBuilder.build(EduIdConnector.EMAIL, (Object[]) emails));
+        attributes.add(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, givenName));
         attributes.add(AttributeBuilder.build(EduIdConnector.SURNAME, "Smith"));
         attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID_AFFILIATION_STATUS, "current"));
         attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID_AFFILIATION_PERIOD_BEGIN, "2018-01-01"));
         String[] affiliations = {"student"};
         attributes.add(AttributeBuilder.build(EduIdConnector.EDU_PERSON_AFFILIATION, affiliations));
+        return attributes;
+    }
 
-        Uid userUid = conn.create(affiliationObjectClass, attributes, null);
-        LOG.ok("New user Uid is: {0}, sent: {1}", userUid.getUidValue(), id);
-        // TODO: verify manually over GUI
+    private Uid create(String givenName) {
+        String id = nextId();
+        Uid uid = conn.create(affiliationObjectClass, affiliation(id, givenName, "bsmith@example.com"), null);
+        assertEquals(uid.getUidValue(), id);
+        return uid;
+    }
+
+    private ConnectorObject get(String id) {
+        return get(conn, id);
+    }
+
+    private ConnectorObject get(EduIdConnector connector, String id) {
+        final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+        EduIdFilter searchByUid = new EduIdFilter();
+        searchByUid.byUid = id;
+        connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+        assertEquals(results.size(), 1);
+        return results.get(0);
+    }
+
+    private List<ConnectorObject> search(Filter filter) {
+        List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+        List<EduIdFilter> queries = conn.createFilterTranslator(affiliationObjectClass, null).translate(filter);
+        assertEquals(queries.size(), 1);
+        conn.executeQuery(affiliationObjectClass, queries.get(0), collect(results), null);
+        return results;
+    }
+
+    private static ResultsHandler collect(final List<ConnectorObject> results) {
+        return new ResultsHandler() {
+            @Override
+            public boolean handle(ConnectorObject connectorObject) {
+                LOG.ok("result {0}", connectorObject);
+                results.add(connectorObject);
+                return true;
+            }
+        };
+    }
+
+    private static Object value(ConnectorObject object, String name) {
+        Attribute attribute = object.getAttributeByName(name);
+        return attribute == null ? null : AttributeUtil.getSingleValue(attribute);
     }
 
     @Test
-    public void testDeleteUser() {
-        Uid uid = new Uid(ID+DOMAIN);
-        conn.delete(affiliationObjectClass, uid, null);
-        // TODO: verify manually over GUI
+    public void testConn() {
+        conn.test();
+        conn.checkAlive();
     }
+
+    @Test
+    public void testCheckAliveNotMeasured() {
+        EduIdOperationMetrics metrics = EduIdMetrics.forConfiguration(configuration()).get(EduIdMetrics.TEST);
+        metrics.reset();
+        conn.checkAlive();
+        assertEquals(metrics.getCount(), 0);
+        conn.test();
+        assertEquals(metrics.getCount(), 1);
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testConnWrongPassword() {
+        EduIdConfiguration configuration = configuration();
+        configuration.setPassword(new GuardedString("wrong".toCharArray()));
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            connector.test();
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testSchema() {
+        Schema schema = conn.schema();
+        LOG.info("schema: " + schema);
+        ObjectClassInfo affiliation = schema.findObjectClassInfo(EduIdConnector.AFFILIATION_OBJECT_CLASS);
+        assertNotNull(affiliation);
+        Set<String> names = new HashSet<String>();
+        for (AttributeInfo info : affiliation.getAttributeInfo()) {
+            names.add(info.getName());
+        }
+        assertTrue(names.contains(EduIdConnector.GIVEN_NAME));
+        assertTrue(names.contains(EduIdConnector.EMAIL));
+    }
+
+    @Test
+    public void testCreateUser() {
+        Uid uid = create("Barbara");
+
+        JSONObject stored = server.getAffiliation(uid.getUidValue());
+        assertNotNull(stored);
+        assertEquals(stored.getString(EduIdConnector.GIVEN_NAME), "Barbara");
+
+        ConnectorObject affiliation = get(uid.getUidValue());
+        assertEquals(value(affiliation, EduIdConnector.GIVEN_NAME), "Barbara");
+        assertEquals(value(affiliation, EduIdConnector.SURNAME), "Smith");
+    }
+
+    @Test(expectedExceptions = AlreadyExistsException.class)
+    public void testCreateUserConflict() {
+        Uid uid = create("Barbara");
+        conn.create(affiliationObjectClass, affiliation(uid.getUidValue(), "Barbara", "bsmith@example.com"), null);
+    }
+
+    @Test(expectedExceptions = InvalidAttributeValueException.class)
+    public void testCreateUserInvalidValue() {
+        server.injectErrors(400, "invalidValue", 1);
+        conn.create(affiliationObjectClass, affiliation(nextId(), "Barbara", "bsmith@example.com"), null);
+    }
+
     @Test
     public void testUpdateUser() {
+        Uid uid = create("Barbara");
 
-        //create
-        Set<Attribute> attributes = new HashSet<Attribute>();
-        String randName = ID; //"1111";// + (new Random()).nextInt();
-        String id = randName+DOMAIN;
+        Set<Attribute> attributes = affiliation(uid.getUidValue(), "BarbaraUpdate", "bsmithUpdate@example.com", "bsmithNew@example.com");
+        Uid updated = conn.update(affiliationObjectClass, uid, attributes, null);
+        assertEquals(updated.getUidValue(), uid.getUidValue());
 
-//        attributes.add(AttributeBuilder.build(Name.NAME, randName));
-        String[] schemas = {EduIdConnector.SCHEMAS_VALUE};
-        attributes.add(AttributeBuilder.build(EduIdConnector.SCHEMAS, schemas));
-        attributes.add(AttributeBuilder.build(EduIdConnector.ID, id));
-        attributes.add(AttributeBuilder.build(EduIdConnector.EXTERNAL_ID, id));
-        attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID, id));
-        attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID, "00007a31-2f1f-4f3f-9a6a-0064363eb6c4"));
-        String[] emails = {"bsmithUpdate@example.com", "bsmithNew@example.com"};
-        attributes.add(AttributeBuilder.build(EduIdConnector.EMAIL, emails));
-        attributes.add(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, "BarbaraUpdate"));
-        attributes.add(AttributeBuilder.build(EduIdConnector.SURNAME, "SmithUpdate"));
-        attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID_AFFILIATION_STATUS, "suspended"));
-        attributes.add(AttributeBuilder.build(EduIdConnector.SWISS_EDU_ID_AFFILIATION_PERIOD_BEGIN, "2018-03-03"));
-        String[] affiliations = {"student", "employee"};
-        attributes.add(AttributeBuilder.build(EduIdConnector.EDU_PERSON_AFFILIATION, affiliations));
+        ConnectorObject affiliation = get(uid.getUidValue());
+        assertEquals(value(affiliation, EduIdConnector.GIVEN_NAME), "BarbaraUpdate");
+        assertEquals(affiliation.getAttributeByName(EduIdConnector.EMAIL).getValue().size(), 2);
+    }
 
-        Uid uid = new Uid(id);
-        Uid userUid = conn.update(affiliationObjectClass, uid, attributes, null);
-        LOG.ok("User {0} updated", userUid.getUidValue());
-        // TODO: verify manually over GUI
+    /**
+     * Connector with its own cache, the cache is shared by connectors with the same settings.
+     */
+    private EduIdConnector cachingConnector(int cacheSize, int cacheTtl) {
+        EduIdConfiguration configuration = configuration();
+        configuration.setCacheSize(cacheSize);
+        configuration.setCacheTtl(cacheTtl);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        return connector;
     }
 
+    @Test
+    public void testCacheHit() {
+        EduIdConnector connector = cachingConnector(11, 60000);
+        EduIdAffiliationCache cache = EduIdAffiliationCache.forConfiguration(connector.getConfiguration());
+        try {
+            String id = nextId();
+            connector.create(affiliationObjectClass, affiliation(id, "Barbara", "bsmith@example.com"), null);
+            long hits = cache.getHits();
+            int requests = server.getRequests();
+            // create response is cached
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Barbara");
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Barbara");
+            assertEquals(server.getRequests(), requests);
+            assertEquals(cache.getHits() - hits, 2);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testCacheTtl() throws Exception {
+        EduIdConnector connector = cachingConnector(12, 100);
+        EduIdAffiliationCache cache = EduIdAffiliationCache.forConfiguration(connector.getConfiguration());
+        try {
+            String id = nextId();
+            connector.create(affiliationObjectClass, affiliation(id, "Barbara", "bsmith@example.com"), null);
+            Thread.sleep(200);
+            long misses = cache.getMisses();
+            int requests = server.getRequests();
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Barbara");
+            assertEquals(server.getRequests() - requests, 1);
+            assertEquals(cache.getMisses() - misses, 1);
+            // read again into the cache
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Barbara");
+            assertEquals(server.getRequests() - requests, 1);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testCacheEviction() {
+        EduIdConnector connector = cachingConnector(2, 60000);
+        EduIdAffiliationCache cache = EduIdAffiliationCache.forConfiguration(connector.getConfiguration());
+        try {
+            String first = nextId();
+            String second = nextId();
+            String third = nextId();
+            connector.create(affiliationObjectClass, affiliation(first, "Barbara", "bsmith@example.com"), null);
+            connector.create(affiliationObjectClass, affiliation(second, "Bob", "bob@example.com"), null);
+            // first is used recently, second is the least recently used one
+            get(connector, first);
+            long evictions = cache.getEvictions();
+            connector.create(affiliationObjectClass, affiliation(third, "Carol", "carol@example.com"), null);
+            assertEquals(cache.getEvictions() - evictions, 1);
+            assertEquals(cache.getSize(), 2);
+
+            int requests = server.getRequests();
+            get(connector, first);
+            get(connector, third);
+            assertEquals(server.getRequests(), requests);
+            get(connector, second);
+            assertEquals(server.getRequests() - requests, 1);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testCacheInvalidation() {
+        EduIdConnector connector = cachingConnector(13, 60000);
+        EduIdConnector other = cachingConnector(13, 60000);
+        try {
+            String id = nextId();
+            connector.create(affiliationObjectClass, affiliation(id, "Barbara", "bsmith@example.com"), null);
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Barbara");
+
+            // the other connector instance shares the cache
+            Set<AttributeDelta> modifications = new HashSet<AttributeDelta>();
+            modifications.add(AttributeDeltaBuilder.build(EduIdConnector.GIVEN_NAME, "Anna"));
+            other.updateDelta(affiliationObjectClass, new Uid(id), modifications, null);
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Anna");
+
+            Set<Attribute> attributes = new HashSet<Attribute>();
+            attributes.add(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, "Agnes"));
+            other.update(affiliationObjectClass, new Uid(id), attributes, null);
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Agnes");
+
+            other.delete(affiliationObjectClass, new Uid(id), null);
+            try {
+                get(connector, id);
+                fail("deleted affiliation " + id + " returned from the cache");
+            } catch (UnknownUidException e) {
+                // expected
+            }
+        } finally {
+            connector.dispose();
+            other.dispose();
+        }
+    }
+
+    @Test
+    public void testCacheReadOvertakenByWrite() throws Exception {
+        final EduIdConnector connector = cachingConnector(14, 60000);
+        EduIdConnector other = cachingConnector(14, 60000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final String id = create("Barbara").getUidValue();
+            // the read is answered with the affiliation before the update
+            server.delayResponses(1, 500);
+            int requests = server.getRequests();
+            Future<ConnectorObject> read = executor.submit(new Callable<ConnectorObject>() {
+                @Override
+                public ConnectorObject call() {
+                    return get(connector, id);
+                }
+            });
+            awaitRequests(requests + 1);
+            Set<AttributeDelta> modifications = new HashSet<AttributeDelta>();
+            modifications.add(AttributeDeltaBuilder.build(EduIdConnector.GIVEN_NAME, "Anna"));
+            other.updateDelta(affiliationObjectClass, new Uid(id), modifications, null);
+
+            assertEquals(value(read.get(10, TimeUnit.SECONDS), EduIdConnector.GIVEN_NAME), "Barbara");
+            // the stale response didn't replace the updated affiliation in the cache
+            assertEquals(value(get(connector, id), EduIdConnector.GIVEN_NAME), "Anna");
+        } finally {
+            executor.shutdownNow();
+            connector.dispose();
+            other.dispose();
+        }
+    }
+
+    @Test
+    public void testUpdateKeepsUnknownAttributes() {
+        EduIdConfiguration configuration = configuration();
+        configuration.setCacheSize(10);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        String id = nextId();
+        try {
+            connector.create(affiliationObjectClass, affiliation(id, "Barbara", "bsmith@example.com"), null);
+            server.putAttribute(id, "urn:example:extension", new JSONObject().put("badge", "42"));
+
+            Set<Attribute> attributes = new HashSet<Attribute>();
+            attributes.add(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, "Anna"));
+            // the cached affiliation from create doesn't have the extension, PUT must not be built from it
+            connector.update(affiliationObjectClass, new Uid(id), attributes, null);
+        } finally {
+            connector.dispose();
+        }
+
+        JSONObject stored = server.getAffiliation(id);
+        assertEquals(stored.getString(EduIdConnector.GIVEN_NAME), "Anna");
+        assertEquals(stored.getJSONObject("urn:example:extension").getString("badge"), "42");
+        assertEquals(stored.getJSONArray(EduIdConnector.SCHEMAS).getString(0), EduIdConnector.SCHEMAS_VALUE);
+    }
+
+    @Test(expectedExceptions = PreconditionFailedException.class)
+    public void testUpdateUserStaleRevision() {
+        Uid uid = create("Barbara");
+        Uid stale = new Uid(uid.getUidValue(), "W/\"0\"");
+        Set<AttributeDelta> modifications = new HashSet<AttributeDelta>();
+        modifications.add(AttributeDeltaBuilder.build(EduIdConnector.GIVEN_NAME, "Anna"));
+        conn.updateDelta(affiliationObjectClass, stale, modifications, null);
+    }
+
+    @Test
+    public void testUpdateDelta() {
+        Uid uid = create("Barbara");
+
+        Set<AttributeDelta> modifications = new HashSet<AttributeDelta>();
+        modifications.add(AttributeDeltaBuilder.build(EduIdConnector.GIVEN_NAME, "Anna"));
+        modifications.add(AttributeDeltaBuilder.build(EduIdConnector.EMAIL, Collections.<Object>singletonList("anna@example.com"), null));
+        conn.updateDelta(affiliationObjectClass, uid, modifications, null);
+
+        ConnectorObject affiliation = get(uid.getUidValue());
+        assertEquals(value(affiliation, EduIdConnector.GIVEN_NAME), "Anna");
+        assertTrue(affiliation.getAttributeByName(EduIdConnector.EMAIL).getValue().contains("anna@example.com"));
+        assertTrue(affiliation.getAttributeByName(EduIdConnector.EMAIL).getValue().contains("bsmith@example.com"));
+    }
+
+    @Test
+    public void testDeleteUser() {
+        Uid uid = create("Barbara");
+        conn.delete(affiliationObjectClass, uid, null);
+        assertNull(server.getAffiliation(uid.getUidValue()));
+    }
+
+    @Test(expectedExceptions = UnknownUidException.class)
+    public void testDeleteUnknownUser() {
+        conn.delete(affiliationObjectClass, new Uid(nextId()), null);
+    }
+
+    @Test(expectedExceptions = UnknownUidException.class)
+    public void findByUnknownUid() {
+        EduIdFilter searchByUid = new EduIdFilter();
+        searchByUid.byUid = nextId();
+        conn.executeQuery(affiliationObjectClass, searchByUid, collect(new ArrayList<ConnectorObject>()), null);
+    }
 
     @Test
     public void findByUid() {
-        ResultsHandler rh = new ResultsHandler() {
+        Uid uid = create("Barbara");
+        List<ConnectorObject> results = search(FilterBuilder.equalTo(uid));
+        assertEquals(results.size(), 1);
+        assertEquals(results.get(0).getUid().getUidValue(), uid.getUidValue());
+    }
+
+    @Test
+    public void findByUids() {
+        Uid first = create("Barbara");
+        Uid second = create("Barbara");
+        Uid unknown = new Uid(nextId());
+        List<ConnectorObject> results = search(FilterBuilder.or(FilterBuilder.or(FilterBuilder.equalTo(first),
+                FilterBuilder.equalTo(second)), FilterBuilder.equalTo(unknown)));
+        assertEquals(results.size(), 2);
+    }
+
+    @Test
+    public void findByAttributePaged() {
+        String givenName = "Paged" + nextId().replace(DOMAIN, "");
+        for (int i = 0; i < 5; i++) {
+            create(givenName);
+        }
+        create("Barbara");
+
+        // pageSize is 2, so the results come in 3 pages
+        List<ConnectorObject> results = search(FilterBuilder.equalTo(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, givenName)));
+        assertEquals(results.size(), 5);
+
+        results = search(FilterBuilder.and(FilterBuilder.startsWith(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, "Paged")),
+                FilterBuilder.not(FilterBuilder.equalTo(AttributeBuilder.build(EduIdConnector.GIVEN_NAME, givenName)))));
+        for (ConnectorObject result : results) {
+            assertNotEquals(value(result, EduIdConnector.GIVEN_NAME), givenName);
+        }
+    }
+
+    @Test
+    public void findWithAttributesToGet() {
+        Uid uid = create("Barbara");
+        OperationOptionsBuilder options = new OperationOptionsBuilder();
+        options.setAttributesToGet(EduIdConnector.GIVEN_NAME);
+
+        final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+        EduIdFilter searchByUid = new EduIdFilter();
+        searchByUid.byUid = uid.getUidValue();
+        conn.executeQuery(affiliationObjectClass, searchByUid, collect(results), options.build());
+        assertEquals(results.size(), 1);
+        assertEquals(server.getLastProjection(), "attributes=meta," + EduIdConnector.GIVEN_NAME + "," + EduIdConnector.SWISS_EDU_PERSON_UNIQUE_ID);
+        assertEquals(results.get(0).getUid().getUidValue(), uid.getUidValue());
+        assertEquals(value(results.get(0), EduIdConnector.GIVEN_NAME), "Barbara");
+        assertNull(results.get(0).getAttributeByName(EduIdConnector.SURNAME));
+
+        // all attributes but the one not requested
+        List<String> names = new ArrayList<String>();
+        for (EduIdAttribute attribute : EduIdAttribute.all()) {
+            if (!attribute.getName().equals(EduIdConnector.SURNAME)) {
+                names.add(attribute.getName());
+            }
+        }
+        options.setAttributesToGet(names);
+        results.clear();
+        conn.executeQuery(affiliationObjectClass, searchByUid, collect(results), options.build());
+        assertEquals(server.getLastProjection(), "excludedAttributes=" + EduIdConnector.SURNAME);
+        assertNull(results.get(0).getAttributeByName(EduIdConnector.SURNAME));
+        assertEquals(value(results.get(0), EduIdConnector.GIVEN_NAME), "Barbara");
+
+        options.setReturnDefaultAttributes(true);
+        results.clear();
+        conn.executeQuery(affiliationObjectClass, searchByUid, collect(results), options.build());
+        assertNull(server.getLastProjection());
+        assertEquals(value(results.get(0), EduIdConnector.SURNAME), "Smith");
+    }
+
+    @Test
+    public void testSync() {
+        SyncToken token = conn.getLatestSyncToken(affiliationObjectClass);
+        assertNotNull(token);
+        Uid uid = create("Barbara");
+
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        conn.sync(affiliationObjectClass, token, new SyncResultsHandler() {
             @Override
-            public boolean handle(ConnectorObject connectorObject) {
-                LOG.ok("result {0}", connectorObject);
+            public boolean handle(SyncDelta delta) {
+                deltas.add(delta);
                 return true;
             }
+        }, null);
+
+        boolean found = false;
+        for (SyncDelta delta : deltas) {
+            found |= delta.getUid().getUidValue().equals(uid.getUidValue());
+        }
+        assertTrue(found, "missing delta for " + uid);
+    }
+
+    @Test
+    public void testSyncModifiedBetweenPages() {
+        SyncToken token = conn.getLatestSyncToken(affiliationObjectClass);
+        final List<String> created = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            created.add(create("Barbara").getUidValue());
+        }
+
+        final Set<String> delivered = new HashSet<String>();
+        conn.sync(affiliationObjectClass, token, new SyncResultsHandler() {
+            @Override
+            public boolean handle(SyncDelta delta) {
+                String uid = delta.getUid().getUidValue();
+                if (delivered.add(uid) && uid.equals(created.get(0))) {
+                    // moves to the end of the sort order, the following affiliations shift by one
+                    server.modify(uid, EduIdConnector.GIVEN_NAME, "Anna");
+                }
+                return true;
+            }
+        }, null);
+        assertTrue(delivered.containsAll(created), "missing deltas, created: " + created + ", delivered: " + delivered);
+    }
+
+    @Test
+    public void testSyncResume() {
+        SyncToken token = conn.getLatestSyncToken(affiliationObjectClass);
+        // usually in the same second, so with the same lastModified
+        final Uid first = create("Barbara");
+        Uid second = create("Bob");
+
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        SyncResultsHandler handler = new SyncResultsHandler() {
+            @Override
+            public boolean handle(SyncDelta delta) {
+                deltas.add(delta);
+                // stops between the two affiliations
+                return !delta.getUid().getUidValue().equals(first.getUidValue());
+            }
         };
+        conn.sync(affiliationObjectClass, token, handler, null);
+        assertEquals(deltas.get(deltas.size() - 1).getUid().getUidValue(), first.getUidValue());
 
-        // searchByUId
-        EduIdFilter searchByUid = new EduIdFilter();
-        searchByUid.byUid = "2470"+DOMAIN;
-        LOG.ok("start finding: "+searchByUid.byUid);
-        conn.executeQuery(affiliationObjectClass, searchByUid, rh, null);
-        LOG.ok("end finding");
-        // TODO: verify manually over GUI
+        SyncToken resumed = deltas.get(deltas.size() - 1).getToken();
+        deltas.clear();
+        conn.sync(affiliationObjectClass, resumed, new SyncResultsHandler() {
+            @Override
+            public boolean handle(SyncDelta delta) {
+                deltas.add(delta);
+                return true;
+            }
+        }, null);
+        boolean found = false;
+        for (SyncDelta delta : deltas) {
+            found |= delta.getUid().getUidValue().equals(second.getUidValue());
+        }
+        assertTrue(found, "missing delta for " + second + " after resuming from " + resumed);
+    }
+
+    @Test
+    public void testCompression() {
+        EduIdConfiguration configuration = configuration();
+        configuration.setHttpCompression(true);
+        configuration.setHttpRequestCompressionThreshold(1);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            int compressedRequests = server.getCompressedRequests();
+            int compressedResponses = server.getCompressedResponses();
+            String id = nextId();
+            connector.create(affiliationObjectClass, affiliation(id, "Barbara", "bsmith@example.com"), null);
+
+            final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = id;
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(value(results.get(0), EduIdConnector.GIVEN_NAME), "Barbara");
+            assertEquals(server.getCompressedRequests() - compressedRequests, 1);
+            assertEquals(server.getCompressedResponses() - compressedResponses, 2);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testRequestContentLength() {
+        int chunkedRequests = server.getChunkedRequests();
+        create("Barbara");
+        // small bodies are sent with Content-Length
+        assertEquals(server.getChunkedRequests(), chunkedRequests);
+
+        String[] emails = new String[400];
+        for (int i = 0; i < emails.length; i++) {
+            emails[i] = "bsmith" + i + "@example.com";
+        }
+        conn.create(affiliationObjectClass, affiliation(nextId(), "Barbara", emails), null);
+        assertEquals(server.getChunkedRequests(), chunkedRequests + 1);
+    }
+
+    @Test
+    public void testWireLogRedaction() {
+        final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+        EduIdConfiguration configuration = configuration();
+        configuration.setWireLogEnabled(true);
+        EduIdConnector connector = wireLoggedConnector(logged);
+        connector.init(configuration);
+        EduIdConfiguration bulkConfiguration = configuration();
+        bulkConfiguration.setWireLogEnabled(true);
+        bulkConfiguration.setBulkEnabled(true);
+        EduIdConnector bulkConnector = wireLoggedConnector(logged);
+        bulkConnector.init(bulkConfiguration);
+        Uid uid = new Uid(create("Barbara").getUidValue());
+        try {
+            Set<AttributeDelta> modifications = new HashSet<AttributeDelta>();
+            modifications.add(AttributeDeltaBuilder.build("fschImapPW", "patch-imap-pw"));
+            connector.updateDelta(affiliationObjectClass, uid, modifications, null);
+            assertEquals(server.getAffiliation(uid.getUidValue()).getString("fschImapPW"), "patch-imap-pw");
+
+            modifications.clear();
+            modifications.add(AttributeDeltaBuilder.build("fschImapPW", "bulk-imap-pw"));
+            bulkConnector.updateDelta(affiliationObjectClass, uid, modifications, null);
+            assertEquals(server.getAffiliation(uid.getUidValue()).getString("fschImapPW"), "bulk-imap-pw");
+
+            Set<Attribute> attributes = affiliation(nextId(), "Bob", "bob@example.com");
+            attributes.add(AttributeBuilder.build("fschImapPW", "create-imap-pw"));
+            bulkConnector.create(affiliationObjectClass, attributes, null);
+        } finally {
+            connector.dispose();
+            bulkConnector.dispose();
+        }
+
+        boolean patchLogged = false;
+        boolean bulkLogged = false;
+        for (String message : logged) {
+            assertFalse(message.contains("imap-pw"), "secret in wire log: " + message);
+            patchLogged |= message.startsWith("--> PATCH");
+            bulkLogged |= message.startsWith("--> POST") && message.contains(EduIdConnector.BULK);
+        }
+        assertTrue(patchLogged, "PATCH not logged: " + logged);
+        assertTrue(bulkLogged, "bulk request not logged: " + logged);
+    }
+
+    /**
+     * Connector which logs every request and response into the list.
+     */
+    private EduIdConnector wireLoggedConnector(final List<String> logged) {
+        return new EduIdConnector() {
+            @Override
+            protected EduIdWireLogger createWireLogger(EduIdConfiguration configuration) {
+                return new EduIdWireLogger(configuration) {
+                    @Override
+                    protected boolean isLogEnabled() {
+                        return true;
+                    }
+
+                    @Override
+                    protected void log(String message) {
+                        logged.add(message);
+                    }
+                };
+            }
+        };
     }
 
+    private EduIdConnector bulkConnector() {
+        EduIdConfiguration configuration = configuration();
+        configuration.setBulkEnabled(true);
+        configuration.setBulkSize(2);
+        configuration.setBulkFlushInterval(5000);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        return connector;
+    }
+
+    private Callable<Uid> createTask(final EduIdConnector connector, final String id) {
+        return new Callable<Uid>() {
+            @Override
+            public Uid call() {
+                return connector.create(affiliationObjectClass, affiliation(id, "Barbara", "bsmith@example.com"), null);
+            }
+        };
+    }
+
+    private void awaitRequests(int requests) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getRequests() < requests) {
+            assertTrue(System.currentTimeMillis() < deadline, "server didn't get request " + requests);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testBulkWithoutOtherWriters() throws Exception {
+        EduIdConnector connector = bulkConnector();
+        try {
+            long start = System.nanoTime();
+            String id = nextId();
+            assertEquals(createTask(connector, id).call().getUidValue(), id);
+            // sent at once, not after bulkFlushInterval
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2500);
+            assertNotNull(server.getAffiliation(id));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testBulkMixedResults() throws Exception {
+        Uid existing = create("Barbara");
+        EduIdConnector[] connectors = {bulkConnector(), bulkConnector(), bulkConnector()};
+        ExecutorService executor = Executors.newFixedThreadPool(connectors.length);
+        try {
+            // operations are collected while the first batch is in flight
+            server.slowDown(1, 500);
+            int requests = server.getRequests();
+            Future<Uid> first = executor.submit(createTask(connectors[0], nextId()));
+            awaitRequests(requests + 1);
+            String created = nextId();
+            Future<Uid> second = executor.submit(createTask(connectors[1], created));
+            Future<Uid> duplicate = executor.submit(createTask(connectors[2], existing.getUidValue()));
+
+            assertNotNull(first.get(10, TimeUnit.SECONDS));
+            assertEquals(second.get(10, TimeUnit.SECONDS).getUidValue(), created);
+            try {
+                duplicate.get(10, TimeUnit.SECONDS);
+                fail("Expected uniqueness error");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AlreadyExistsException, String.valueOf(e.getCause()));
+            }
+            // 201 and 409 in one bulk request
+            assertEquals(server.getRequests() - requests, 2);
+            assertNotNull(server.getAffiliation(created));
+        } finally {
+            executor.shutdownNow();
+            for (EduIdConnector connector : connectors) {
+                connector.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testBulkIOError() throws Exception {
+        EduIdConnector[] connectors = {bulkConnector(), bulkConnector(), bulkConnector()};
+        ExecutorService executor = Executors.newFixedThreadPool(connectors.length);
+        try {
+            server.slowDown(1, 500);
+            int requests = server.getRequests();
+            Future<Uid> first = executor.submit(createTask(connectors[0], nextId()));
+            awaitRequests(requests + 1);
+            // the batch collected meanwhile gets no response
+            server.dropConnections(1);
+            String secondId = nextId();
+            String thirdId = nextId();
+            List<Future<Uid>> failed = new ArrayList<Future<Uid>>();
+            failed.add(executor.submit(createTask(connectors[1], secondId)));
+            failed.add(executor.submit(createTask(connectors[2], thirdId)));
+
+            assertNotNull(first.get(10, TimeUnit.SECONDS));
+            for (Future<Uid> future : failed) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    fail("Expected I/O error");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof ConnectorIOException, String.valueOf(e.getCause()));
+                }
+            }
+            assertEquals(server.getRequests() - requests, 2);
+            assertNull(server.getAffiliation(secondId));
+            assertNull(server.getAffiliation(thirdId));
+        } finally {
+            executor.shutdownNow();
+            for (EduIdConnector connector : connectors) {
+                connector.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testRetryThrottled() {
+        Uid uid = create("Barbara");
+        int throttled = server.getThrottledRequests();
+        server.throttle(2, 0);
+        assertEquals(value(get(uid.getUidValue()), EduIdConnector.GIVEN_NAME), "Barbara");
+        assertEquals(server.getThrottledRequests() - throttled, 2);
+    }
+
+    @Test
+    public void testRetryUnavailable() {
+        Uid uid = create("Barbara");
+        server.injectErrors(503, null, 2);
+        assertEquals(value(get(uid.getUidValue()), EduIdConnector.GIVEN_NAME), "Barbara");
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testServerError() {
+        server.injectErrors(500, null, 1);
+        conn.create(affiliationObjectClass, affiliation(nextId(), "Barbara", "bsmith@example.com"), null);
+    }
+
+    @Test(expectedExceptions = ConnectorIOException.class)
+    public void testSocketTimeout() {
+        Uid uid = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setHttpSocketTimeout(100);
+        configuration.setMaxRetries(0);
+        // separate health monitor, these failures must not open the circuit of the shared connector
+        configuration.setCircuitBreakerThreshold(0);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        server.setLatency(500);
+        try {
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = uid.getUidValue();
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(new ArrayList<ConnectorObject>()), null);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testAsyncTransport() {
+        Uid first = create("Barbara");
+        Uid second = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setHttpAsync(true);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            EduIdFilter searchByUids = new EduIdFilter();
+            searchByUids.byUids = new LinkedHashSet<>(Arrays.asList(first.getUidValue(), nextId(), second.getUidValue()));
+            // first read is throttled and retried, unknown affiliation is skipped
+            server.throttle(1, 0);
+            List<ConnectorObject> results = new ArrayList<>();
+            connector.executeQuery(affiliationObjectClass, searchByUids, collect(results), null);
+            assertEquals(results.size(), 2);
+            assertEquals(results.get(0).getUid().getUidValue(), first.getUidValue());
+
+            Uid uid = connector.create(affiliationObjectClass, affiliation(nextId(), "Barbara", "bsmith@example.com"), null);
+            assertEquals(value(get(uid.getUidValue()), EduIdConnector.GIVEN_NAME), "Barbara");
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test(expectedExceptions = ConnectorIOException.class)
+    public void testAsyncTransportMaxResponseSize() {
+        Uid uid = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setHttpAsync(true);
+        configuration.setMaxResponseSize(200L);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            // the buffered response is limited like the streamed one
+            get(connector, uid.getUidValue());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testSharedTransport() {
+        Uid uid = create("Barbara");
+        EduIdConnector first = new EduIdConnector();
+        first.init(configuration());
+        EduIdConnector second = new EduIdConnector();
+        second.init(configuration());
+        EduIdConfiguration other = configuration();
+        other.setHttpMaxConnections(other.getHttpMaxConnections() + 1);
+        EduIdConnector third = new EduIdConnector();
+        third.init(other);
+        try {
+            assertSame(first.getTransport(), second.getTransport());
+            assertNotSame(first.getTransport(), third.getTransport());
+
+            // transport stays open until the last instance is disposed
+            first.dispose();
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = uid.getUidValue();
+            List<ConnectorObject> results = new ArrayList<>();
+            second.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(results.size(), 1);
+        } finally {
+            second.dispose();
+            third.dispose();
+        }
+    }
+
+    @Test
+    public void testWarmUp() {
+        EduIdConfiguration configuration = configuration();
+        configuration.setHttpWarmUpConnections(3);
+        // own transport, the shared one may have open connections already
+        configuration.setHttpIdleTimeout(configuration.getHttpIdleTimeout() + 1);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            assertEquals(connector.getTransport().getPoolStats().getAvailable(), 3);
+            int requests = server.getRequests();
+            connector.test();
+            assertEquals(server.getRequests(), requests + 1);
+            assertEquals(connector.getTransport().getPoolStats().getAvailable(), 3);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testReadCoalescing() throws Exception {
+        final Uid uid = create("Barbara");
+        final int readers = 4;
+        final List<EduIdConnector> connectors = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            EduIdConnector connector = new EduIdConnector();
+            connector.init(configuration());
+            connectors.add(connector);
+        }
+        server.setLatency(300);
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            int requests = server.getRequests();
+            List<Future<List<ConnectorObject>>> results = new ArrayList<>();
+            for (final EduIdConnector connector : connectors) {
+                results.add(executor.submit(new Callable<List<ConnectorObject>>() {
+                    @Override
+                    public List<ConnectorObject> call() {
+                        EduIdFilter searchByUid = new EduIdFilter();
+                        searchByUid.byUid = uid.getUidValue();
+                        List<ConnectorObject> found = new ArrayList<>();
+                        connector.executeQuery(affiliationObjectClass, searchByUid, collect(found), null);
+                        return found;
+                    }
+                }));
+            }
+            for (Future<List<ConnectorObject>> result : results) {
+                assertEquals(result.get().size(), 1);
+            }
+            // readers started within the latency share one GET
+            assertTrue(server.getRequests() - requests < readers, "requests: " + (server.getRequests() - requests));
+        } finally {
+            executor.shutdownNow();
+            for (EduIdConnector connector : connectors) {
+                connector.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testReadCoalescingWithWrite() throws Exception {
+        final String id = create("Barbara").getUidValue();
+        final EduIdConnector[] readers = {new EduIdConnector(), new EduIdConnector()};
+        for (EduIdConnector reader : readers) {
+            reader.init(configuration());
+        }
+        EduIdSingleFlight singleFlight = EduIdSingleFlight.forConfiguration(configuration());
+        ExecutorService executor = Executors.newFixedThreadPool(readers.length);
+        try {
+            // the first read is answered with the affiliation before the update
+            server.delayResponses(1, 500);
+            int requests = server.getRequests();
+            List<Future<ConnectorObject>> results = new ArrayList<>();
+            for (final EduIdConnector reader : readers) {
+                long coalesced = singleFlight.getCoalesced();
+                results.add(executor.submit(new Callable<ConnectorObject>() {
+                    @Override
+                    public ConnectorObject call() {
+                        return get(reader, id);
+                    }
+                }));
+                if (results.size() == 1) {
+                    awaitRequests(requests + 1);
+                } else {
+                    long deadline = System.currentTimeMillis() + 10000;
+                    while (singleFlight.getCoalesced() == coalesced) {
+                        assertTrue(System.currentTimeMillis() < deadline, "second read didn't join the first one");
+                        Thread.sleep(10);
+                    }
+                }
+            }
+            Set<AttributeDelta> modifications = new HashSet<AttributeDelta>();
+            modifications.add(AttributeDeltaBuilder.build(EduIdConnector.GIVEN_NAME, "Anna"));
+            conn.updateDelta(affiliationObjectClass, new Uid(id), modifications, null);
+
+            // the first reader gets its own response, the one which joined it reads again
+            assertEquals(value(results.get(0).get(10, TimeUnit.SECONDS), EduIdConnector.GIVEN_NAME), "Barbara");
+            assertEquals(value(results.get(1).get(10, TimeUnit.SECONDS), EduIdConnector.GIVEN_NAME), "Anna");
+            // GET, PATCH and the repeated GET
+            assertEquals(server.getRequests() - requests, 3);
+        } finally {
+            executor.shutdownNow();
+            for (EduIdConnector reader : readers) {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testHedgedRead() {
+        Uid uid = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setHedgeDelay(50);
+        configuration.setHedgeBudget(100);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        server.setLatency(200);
+        EduIdOperationMetrics metrics = EduIdMetrics.forConfiguration(configuration).get(EduIdMetrics.GET);
+        metrics.reset();
+        try {
+            int requests = server.getRequests();
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = uid.getUidValue();
+            List<ConnectorObject> results = new ArrayList<>();
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(results.size(), 1);
+            assertEquals(server.getRequests(), requests + 2);
+            assertEquals(metrics.getHedges(), 1);
+            assertEquals(metrics.getRequests(), 1);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testSearchNotHedged() {
+        create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setHedgeDelay(50);
+        configuration.setHedgeBudget(100);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        server.setLatency(200);
+        try {
+            int requests = server.getRequests();
+            OperationOptionsBuilder options = new OperationOptionsBuilder();
+            options.setPageSize(1);
+            List<ConnectorObject> results = new ArrayList<>();
+            connector.executeQuery(affiliationObjectClass, null, collect(results), options.build());
+            assertEquals(results.size(), 1);
+            // one page, no hedge
+            assertEquals(server.getRequests(), requests + 1);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        EduIdConfiguration configuration = configuration();
+        // logging interval doesn't create separate metrics
+        configuration.setMetricsLogInterval(60000);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            assertSame(EduIdMetrics.forConfiguration(configuration), EduIdMetrics.forConfiguration(configuration()));
+
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.evolveum.polygon.connector.eduid:type=EduIdMetrics"
+                    + ",endpoint=" + ObjectName.quote(server.getServiceAddress())
+                    + ",user=" + ObjectName.quote(USERNAME)
+                    + ",operation=" + EduIdMetrics.CREATE);
+            long count = (Long) mbeanServer.getAttribute(name, "Count");
+            long requests = (Long) mbeanServer.getAttribute(name, "Requests");
+            long errors = (Long) mbeanServer.getAttribute(name, "Errors");
+
+            connector.create(affiliationObjectClass, affiliation(nextId(), "Barbara", "bsmith@example.com"), null);
+            String uid = nextId();
+            conn.create(affiliationObjectClass, affiliation(uid, "Barbara", "bsmith@example.com"), null);
+            try {
+                conn.create(affiliationObjectClass, affiliation(uid, "Barbara", "bsmith@example.com"), null);
+                fail("Expected AlreadyExistsException");
+            } catch (AlreadyExistsException e) {
+                // expected
+            }
+
+            assertEquals(mbeanServer.getAttribute(name, "Count"), count + 3);
+            assertEquals(mbeanServer.getAttribute(name, "Requests"), requests + 3);
+            assertEquals(mbeanServer.getAttribute(name, "Errors"), errors + 1);
+            String statusCodes = (String) mbeanServer.getAttribute(name, "StatusCodes");
+            assertTrue(statusCodes.contains("201=") && statusCodes.contains("409="), statusCodes);
+            assertTrue((Double) mbeanServer.getAttribute(name, "LatencyP50") > 0);
+            assertTrue((Long) mbeanServer.getAttribute(name, "RequestBytes") > 0);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        Uid uid = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setMaxRetries(0);
+        configuration.setCircuitBreakerThreshold(2);
+        configuration.setCircuitBreakerReset(200);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = uid.getUidValue();
+            server.injectErrors(500, null, 2);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    connector.executeQuery(affiliationObjectClass, searchByUid, collect(new ArrayList<ConnectorObject>()), null);
+                    fail("Expected server error");
+                } catch (ConnectionFailedException e) {
+                    throw e;
+                } catch (ConnectorException e) {
+                    // expected
+                }
+            }
+
+            // open, fails fast without a request
+            int requests = server.getRequests();
+            try {
+                connector.executeQuery(affiliationObjectClass, searchByUid, collect(new ArrayList<ConnectorObject>()), null);
+                fail("Expected open circuit");
+            } catch (ConnectionFailedException e) {
+                // expected
+            }
+            assertEquals(server.getRequests(), requests);
+
+            // half-open after the reset, the trial request closes the circuit
+            Thread.sleep(250);
+            List<ConnectorObject> results = new ArrayList<>();
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(results.size(), 1);
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(results.size(), 2);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerIgnoresRetriedThrottling() {
+        Uid uid = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setMaxRetries(3);
+        configuration.setCircuitBreakerThreshold(2);
+        configuration.setCircuitBreakerReset(60000);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        try {
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = uid.getUidValue();
+            // more throttled attempts than the threshold, all of them retried
+            server.injectErrors(503, null, 3);
+            List<ConnectorObject> results = new ArrayList<>();
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(results.size(), 1);
+            assertTrue(EduIdHealthMonitor.forConfiguration(configuration).toString().contains("open=false"));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void testHedgedReadRetry() {
+        Uid uid = create("Barbara");
+        EduIdConfiguration configuration = configuration();
+        configuration.setHedgeDelay(50);
+        configuration.setHedgeBudget(100);
+        EduIdConnector connector = new EduIdConnector();
+        connector.init(configuration);
+        EduIdOperationMetrics metrics = EduIdMetrics.forConfiguration(configuration).get(EduIdMetrics.GET);
+        metrics.reset();
+        // slow primary, the hedge gets 503 first and the read is retried
+        server.slowDown(1, 1000);
+        server.injectErrors(503, null, 1);
+        try {
+            EduIdFilter searchByUid = new EduIdFilter();
+            searchByUid.byUid = uid.getUidValue();
+            List<ConnectorObject> results = new ArrayList<>();
+            connector.executeQuery(affiliationObjectClass, searchByUid, collect(results), null);
+            assertEquals(results.size(), 1);
+            assertEquals(metrics.getHedges(), 1);
+            assertEquals(metrics.getRetries(), 1);
+        } finally {
+            connector.dispose();
+        }
+    }
 }